@@ -0,0 +1,311 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package client;
+
+import client.net.DictionaryClientCore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a running server over sockets through DictionaryClientCore and reports throughput and
+// latency percentiles:
+//
+//   java -cp <classes> client.LoadGenerator <host> <port> [--connections 2] [--mode closed|open]
+//        [--concurrency 16] [--rate 10000] [--seconds 10] [--warmup 3] [--words 100000]
+//        [--zipf 0.99] [--mix query=80,miss=5,add=3,remove=3,update=5,addmeaning=4] [--binary true]
+//
+// Requests go to a key space of --words headwords, "load0", "load1", ..., which are added first.
+// Each request picks its word with Zipfian popularity (exponent --zipf), so a few words get most of
+// the traffic, as in real lookups. "miss" queries a word that is not in the dictionary; the other
+// operations are the protocol's own. Removed words are added back by later adds, so the key space
+// stays roughly the same size.
+//
+// In closed-loop mode, --concurrency users each send a request and wait for its answer before the
+// next one, which measures what the server does at a fixed load. In open-loop mode requests are
+// sent at --rate per second whether or not earlier ones were answered, and latency is measured
+// from when each was due, so a stall is charged to every request it delayed (no coordinated
+// omission). Latencies are kept in a log-linear histogram with about 0.1% precision.
+public class LoadGenerator {
+    private static final String[] OPS = { "query", "miss", "add", "remove", "update", "addmeaning" };
+
+    private final DictionaryClientCore client;
+    private final int words;
+    private final double[] zipf;        // cumulative probability of the word ranks
+    private final int[] mix;            // cumulative weights of OPS
+    private final Histogram[] latencies = new Histogram[OPS.length];
+    private final Histogram all = new Histogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile boolean recording;
+
+    private LoadGenerator(DictionaryClientCore client, int words, double exponent, int[] mix) {
+        this.client = client;
+        this.words = words;
+        this.mix = mix;
+        zipf = new double[words];
+        double sum = 0;
+        for (int i = 0; i < words; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            zipf[i] = sum;
+        }
+        for (int i = 0; i < words; i++) {
+            zipf[i] /= sum;
+        }
+        for (int i = 0; i < OPS.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java client.LoadGenerator <host> <port> [--mode closed|open] [options]");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int connections = Integer.parseInt(options.getOrDefault("--connections", "2"));
+        boolean binary = Boolean.parseBoolean(options.getOrDefault("--binary", "false"));
+        String mode = options.getOrDefault("--mode", "closed");
+        int concurrency = Integer.parseInt(options.getOrDefault("--concurrency", "16"));
+        double rate = Double.parseDouble(options.getOrDefault("--rate", "10000"));
+        int seconds = Integer.parseInt(options.getOrDefault("--seconds", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("--warmup", "3"));
+        int words = Integer.parseInt(options.getOrDefault("--words", "100000"));
+        double exponent = Double.parseDouble(options.getOrDefault("--zipf", "0.99"));
+        int[] mix = parseMix(options.getOrDefault("--mix", "query=80,miss=5,add=3,remove=3,update=5,addmeaning=4"));
+
+        DictionaryClientCore client = new DictionaryClientCore(args[0], Integer.parseInt(args[1]), binary, connections);
+        LoadGenerator generator = new LoadGenerator(client, words, exponent, mix);
+        generator.populate();
+        System.out.printf("%s loop, %d connections%s, %d words, zipf %.2f, %s%n", mode, connections,
+                binary ? " (binary)" : "", words, exponent,
+                mode.equals("open") ? String.format("%.0f requests/s", rate) : concurrency + " users");
+        Runnable load = mode.equals("open")
+                ? () -> generator.openLoop(rate, warmup + seconds)
+                : () -> generator.closedLoop(concurrency, warmup + seconds);
+        Thread driver = new Thread(load, "load");
+        driver.start();
+        Thread.sleep(warmup * 1000L);
+        generator.recording = true;
+        long start = System.nanoTime();
+        driver.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        // Let answers still on their way be counted
+        Thread.sleep(200);
+        generator.recording = false;
+        generator.report(elapsed);
+        client.close();
+    }
+
+    // Make sure every word of the key space exists, a thousand at a time
+    private void populate() throws Exception {
+        List<CompletableFuture<String>> batches = new ArrayList<>();
+        for (int start = 0; start < words; start += 1000) {
+            StringBuilder batch = new StringBuilder("{\"type\":\"madd\",\"items\":[");
+            for (int i = start; i < Math.min(words, start + 1000); i++) {
+                batch.append(i == start ? "" : ",").append("{\"word\":\"load").append(i).append("\",\"meanings\":[\"base\"]}");
+            }
+            batches.add(client.send(batch.append("]}").toString(), 60, TimeUnit.SECONDS));
+        }
+        for (CompletableFuture<String> batch : batches) {
+            batch.get();
+        }
+    }
+
+    private void closedLoop(int users, int seconds) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            Thread user = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int op = pickOp(random);
+                    long start = System.nanoTime();
+                    try {
+                        client.send(request(op, random)).get();
+                        record(op, start, null);
+                    } catch (ExecutionException e) {
+                        record(op, start, e.getCause());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "user-" + u);
+            user.start();
+            threads.add(user);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void openLoop(double rate, int seconds) {
+        long interval = (long) (1e9 / rate);
+        long next = System.nanoTime();
+        long deadline = next + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (next < deadline) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            // Behind schedule, requests go out back to back until it is caught up
+            int op = pickOp(random);
+            long due = next;
+            client.send(request(op, random)).whenComplete((response, error) -> record(op, due, error));
+            next += interval;
+        }
+    }
+
+    private void record(int op, long start, Throwable error) {
+        if (!recording) {
+            return;
+        }
+        if (error != null) {
+            (error instanceof TimeoutException ? timeouts : failures).increment();
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        latencies[op].record(micros);
+        all.record(micros);
+    }
+
+    private String request(int op, Random random) {
+        String word = "load" + pickWord(random);
+        switch (OPS[op]) {
+            case "query":
+                return "{\"type\":\"query\",\"word\":\"" + word + "\"}";
+            case "miss":
+                return "{\"type\":\"query\",\"word\":\"" + word + "x\"}";
+            case "add":
+                return "{\"type\":\"add\",\"word\":\"" + word + "\",\"meanings\":[\"base\"]}";
+            case "remove":
+                return "{\"type\":\"remove\",\"word\":\"" + word + "\"}";
+            case "update":
+                // Takes the meaning out and puts it back, a full write that leaves the word as it was
+                return "{\"type\":\"update\",\"word\":\"" + word + "\",\"oldMeaning\":\"base\",\"newMeaning\":\"base\"}";
+            default:
+                // Only a few distinct meanings, so a popular word's list stops growing
+                return "{\"type\":\"addmeaning\",\"word\":\"" + word + "\",\"meaning\":\"extra " + random.nextInt(8) + "\"}";
+        }
+    }
+
+    private int pickWord(Random random) {
+        int rank = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, words - 1);
+    }
+
+    private int pickOp(Random random) {
+        int x = random.nextInt(mix[mix.length - 1]);
+        int op = 0;
+        while (x >= mix[op]) {
+            op++;
+        }
+        return op;
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[OPS.length];
+        for (String part : spec.split(",")) {
+            String[] pair = part.split("=");
+            int op = Arrays.asList(OPS).indexOf(pair[0].trim());
+            if (op < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + part);
+            }
+            weights[op] = Integer.parseInt(pair[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("The mix has no operations");
+        }
+        return weights;
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%.0f requests/s over %.1f s, %d failed, %d timed out%n",
+                all.count() / seconds, seconds, failures.sum(), timeouts.sum());
+        System.out.printf("%-11s %10s %10s %10s %10s %10s %10s%n", "latency us", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (int op = 0; op < OPS.length; op++) {
+            if (latencies[op].count() > 0) {
+                print(OPS[op], latencies[op]);
+            }
+        }
+        print("all", all);
+    }
+
+    private static void print(String name, Histogram h) {
+        System.out.printf("%-11s %10d %10d %10d %10d %10d %10d%n", name, h.count(), h.percentile(50), h.percentile(90),
+                h.percentile(99), h.percentile(99.9), h.max());
+    }
+
+    // Counts of values in log-linear buckets, as HdrHistogram keeps them: exact below 2048, and
+    // above that 1024 buckets per power of two, so a reported value is within 0.1% of the real one.
+    // Safe to record into from many threads.
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 10;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            total.increment();
+            max.accumulate(value);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // The smallest value that at least the given percent of the recorded values do not exceed,
+        // at the histogram's precision
+        long percentile(double percent) {
+            long rank = (long) Math.ceil(percent / 100 * count());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(lowest(i + 1) - 1, max());
+                }
+            }
+            return max();
+        }
+
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        private static long lowest(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        }
+    }
+}
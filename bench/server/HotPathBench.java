@@ -0,0 +1,323 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.IntToLongFunction;
+import java.util.regex.Pattern;
+import com.google.gson.Gson;
+
+// Microbenchmarks of the server's hot paths, run in-process over generated dictionaries:
+//
+//   java -cp <classes> server.HotPathBench [--sizes 10000,100000,1000000] [--warmup 3]
+//        [--iterations 5] [--time-ms 1000] [--filter <regex>] [--out results.csv]
+//   java -cp <classes> server.HotPathBench compare <baseline.csv> <results.csv> [maxSlowdownPercent]
+//
+// For every dictionary size it times:
+//   fuzzy.closest       similar-word lookup of a one-edit typo (the banded Levenshtein trie search)
+//   query.hit           exact query through processRequest
+//   query.miss          query of a typo through processRequest, with the miss cache cold
+//   query.cached        query through handleRequest, served from the response cache as bytes
+//   codec.decode        parsing a request line; gson.decode does the same with Gson
+//   codec.encode        encoding a query response; gson.encode does the same with Gson
+//   load.text           loading the dictionary file into a new store
+//   write.text          writing the dictionary as text; write.binary as a binary snapshot
+//
+// Each benchmark runs its warm-up iterations, then its measured ones, each repeating the operation
+// for --time-ms. The score is the mean time per operation over the measured iterations, with
+// their standard deviation as the error. Results are printed and written as CSV (benchmark, size,
+// ns/op, error, operations). "compare" reads two such files and exits with status 1 if any
+// benchmark got slower than the baseline by more than maxSlowdownPercent (default 10), so a run
+// can gate a change. Sizes of 10M words need a heap of several GB (-Xmx).
+public class HotPathBench {
+    // Results go here so the JIT cannot drop the work that produced them
+    private static volatile long sink;
+
+    private final int warmup;
+    private final int iterations;
+    private final long iterationNanos;
+    private final Pattern filter;
+    private final List<String[]> results = new ArrayList<>();
+
+    private HotPathBench(int warmup, int iterations, long iterationMs, Pattern filter) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMs * 1_000_000L;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("compare")) {
+            if (args.length < 3) {
+                System.out.println("Usage: java server.HotPathBench compare <baseline.csv> <results.csv> [maxSlowdownPercent]");
+                System.exit(2);
+            }
+            System.exit(compare(new File(args[1]), new File(args[2]), args.length > 3 ? Double.parseDouble(args[3]) : 10) ? 0 : 1);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        HotPathBench bench = new HotPathBench(
+                Integer.parseInt(options.getOrDefault("--warmup", "3")),
+                Integer.parseInt(options.getOrDefault("--iterations", "5")),
+                Long.parseLong(options.getOrDefault("--time-ms", "1000")),
+                Pattern.compile(options.getOrDefault("--filter", ".*")));
+        System.out.printf("%-16s %10s %14s %12s %12s%n", "benchmark", "size", "ns/op", "error", "ops");
+        for (String size : options.getOrDefault("--sizes", "10000,100000,1000000").split(",")) {
+            bench.runAll(Integer.parseInt(size.trim()));
+        }
+        File out = new File(options.getOrDefault("--out", "hotpath-results.csv"));
+        bench.write(out);
+        System.out.println("Results written to " + out);
+    }
+
+    private void runAll(int size) throws IOException {
+        Random random = new Random(size);
+        List<String> words = words(size, random);
+        HeapDictionaryStore store = new HeapDictionaryStore();
+        for (String word : words) {
+            store.put(word, meanings(random));
+        }
+        DictionaryServer.useDictionary(store);
+        String[] hits = sample(words, 1024, random);
+        String[] typos = new String[hits.length];
+        for (int i = 0; i < typos.length; i++) {
+            typos[i] = typo(hits[i], random);
+        }
+
+        SuggestionIndex index = new SuggestionIndex();
+        index.rebuild(words);
+        run("fuzzy.closest", size, new Cycle(typos.length, i -> {
+            String similar = index.closest(typos[i], 2);
+            return similar == null ? 0 : similar.length();
+        }));
+        DictionaryServer.RequestMessage[] hitRequests = queries(hits);
+        run("query.hit", size, new Cycle(hits.length, i -> DictionaryServer.processRequest(hitRequests[i]).data.size()));
+        // A new dictionary for every iteration would be slow to build, so the miss cache is kept
+        // cold by asking for more distinct typos than it holds
+        DictionaryServer.RequestMessage[] missRequests = queries(typos(words, ServerConfig.MISS_CACHE_ENTRIES * 2, random));
+        run("query.miss", size, new Cycle(missRequests.length, i -> DictionaryServer.processRequest(missRequests[i]).message.length()));
+        run("query.cached", size, new Cycle(hits.length, i -> DictionaryServer.handleRequest(hitRequests[i]).length));
+
+        byte[][] lines = new byte[hits.length][];
+        for (int i = 0; i < hits.length; i++) {
+            lines[i] = ("{\"id\":\"" + i + "\",\"type\":\"query\",\"word\":\"" + hits[i] + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+        run("codec.decode", size, new Cycle(lines.length, i -> DictionaryServer.parseRequest(lines[i], 0, lines[i].length).word.length()));
+        Gson gson = new Gson();
+        String[] strings = new String[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            strings[i] = new String(lines[i], StandardCharsets.UTF_8);
+        }
+        run("gson.decode", size, new Cycle(strings.length, i -> gson.fromJson(strings[i], DictionaryServer.RequestMessage.class).word.length()));
+        DictionaryServer.ResponseMessage[] answers = new DictionaryServer.ResponseMessage[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            answers[i] = DictionaryServer.processRequest(hitRequests[i]);
+            answers[i].id = Integer.toString(i);
+        }
+        run("codec.encode", size, new Cycle(answers.length, i -> ProtocolCodec.encodeResponse(answers[i]).length));
+        run("gson.encode", size, new Cycle(answers.length, i -> gson.toJson(answers[i]).length()));
+
+        File dir = Files.createTempDirectory("hotpath").toFile();
+        try {
+            File text = new File(dir, "dictionary.txt");
+            File binary = new File(dir, "dictionary.bin");
+            DictionaryLoader.writeText(text, store);
+            run("load.text", size, () -> {
+                DictionaryStore loaded = new HeapDictionaryStore();
+                DictionaryLoader.load(text, loaded);
+                return loaded.size();
+            });
+            run("write.text", size, () -> {
+                DictionaryLoader.writeText(text, store);
+                return text.length();
+            });
+            run("write.binary", size, () -> {
+                BinarySnapshot.write(binary, store);
+                return binary.length();
+            });
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private interface Operation {
+        long run() throws IOException;
+    }
+
+    // Steps through a fixed set of inputs, so every call does the same kind of work on a different one
+    private static class Cycle implements Operation {
+        private final int length;
+        private final IntToLongFunction body;
+        private int next;
+
+        Cycle(int length, IntToLongFunction body) {
+            this.length = length;
+            this.body = body;
+        }
+
+        @Override
+        public long run() {
+            long result = body.applyAsLong(next);
+            next = next + 1 == length ? 0 : next + 1;
+            return result;
+        }
+    }
+
+    private void run(String name, int size, Operation operation) throws IOException {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < warmup; i++) {
+            iteration(operation);
+        }
+        double[] nanosPerOp = new double[iterations];
+        long operations = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iteration(operation);
+            nanosPerOp[i] = (double) measured[0] / measured[1];
+            operations += measured[1];
+        }
+        double mean = 0;
+        for (double x : nanosPerOp) {
+            mean += x / iterations;
+        }
+        double variance = 0;
+        for (double x : nanosPerOp) {
+            variance += (x - mean) * (x - mean) / Math.max(1, iterations - 1);
+        }
+        double error = Math.sqrt(variance);
+        System.out.printf("%-16s %10d %14.1f %12.1f %12d%n", name, size, mean, error, operations);
+        results.add(new String[] { name, Integer.toString(size), String.format(Locale.ROOT, "%.1f", mean),
+                String.format(Locale.ROOT, "%.1f", error), Long.toString(operations) });
+    }
+
+    // Repeat the operation for one iteration's time, checking the clock every few calls so that
+    // reading it does not dominate fast operations. Returns the elapsed nanoseconds and the count.
+    private long[] iteration(Operation operation) throws IOException {
+        long result = 0;
+        long count = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                result += operation.run();
+            }
+            count += batch;
+            elapsed = System.nanoTime() - start;
+            if (batch < 1024 && elapsed < iterationNanos / 100) {
+                batch *= 2;
+            }
+        } while (elapsed < iterationNanos);
+        sink += result;
+        return new long[] { elapsed, count };
+    }
+
+    private void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("benchmark,size,ns_per_op,error_ns,operations");
+            for (String[] row : results) {
+                out.println(String.join(",", row));
+            }
+        }
+    }
+
+    // Compare every benchmark in both files; returns false if any slowed down past the limit
+    private static boolean compare(File baselineFile, File resultsFile, double maxSlowdownPercent) throws IOException {
+        Map<String, Double> baseline = read(baselineFile);
+        Map<String, Double> current = read(resultsFile);
+        boolean ok = true;
+        System.out.printf("%-24s %14s %14s %9s%n", "benchmark@size", "baseline ns", "current ns", "change");
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            double change = (entry.getValue() - before) / before * 100;
+            boolean regressed = change > maxSlowdownPercent;
+            ok &= !regressed;
+            System.out.printf("%-24s %14.1f %14.1f %+8.1f%%%s%n", entry.getKey(), before, entry.getValue(), change,
+                    regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(ok ? "No regressions." : "Slower than the baseline by more than " + maxSlowdownPercent + "%.");
+        return ok;
+    }
+
+    private static Map<String, Double> read(File file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            scores.put(fields[0] + "@" + fields[1], Double.parseDouble(fields[2]));
+        }
+        return scores;
+    }
+
+    // Distinct lowercase words of 3 to 12 letters, with the short ones less likely, as in English
+    private static List<String> words(int count, Random random) {
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        while (words.size() < count) {
+            word.setLength(0);
+            int length = 3 + Math.min(random.nextInt(6) + random.nextInt(6), 9);
+            for (int i = 0; i < length; i++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words.add(word.toString());
+        }
+        return new ArrayList<>(words);
+    }
+
+    private static List<String> meanings(Random random) {
+        List<String> meanings = new ArrayList<>();
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            meanings.add("meaning " + random.nextInt(100000) + " of the word");
+        }
+        return meanings;
+    }
+
+    private static String[] sample(List<String> words, int count, Random random) {
+        String[] sample = new String[count];
+        for (int i = 0; i < count; i++) {
+            sample[i] = words.get(random.nextInt(words.size()));
+        }
+        return sample;
+    }
+
+    private static String[] typos(List<String> words, int count, Random random) {
+        String[] typos = new String[count];
+        for (int i = 0; i < count; i++) {
+            typos[i] = typo(words.get(random.nextInt(words.size())), random);
+        }
+        return typos;
+    }
+
+    // The word with one letter changed to an uppercase one, so it is never itself a headword
+    private static String typo(String word, Random random) {
+        char[] letters = word.toCharArray();
+        letters[random.nextInt(letters.length)] = (char) ('A' + random.nextInt(26));
+        return new String(letters);
+    }
+
+    private static DictionaryServer.RequestMessage[] queries(String[] words) {
+        DictionaryServer.RequestMessage[] requests = new DictionaryServer.RequestMessage[words.length];
+        for (int i = 0; i < words.length; i++) {
+            requests[i] = new DictionaryServer.RequestMessage();
+            requests[i].type = "query";
+            requests[i].word = words[i];
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Concurrent write stress for the request path, run in-process with no sockets:
+//
+//   java -cp <classes> server.WriteStress [maxThreads] [seconds] [words]
+//
+// First it measures write throughput (update, addmeaning, remove and re-add on random words) with
+// 1, 2, 4, ... maxThreads writers, while one reader keeps querying the words the writers hit
+// hardest. Then it checks that concurrent writes were not lost or misapplied:
+//   - every successful addmeaning on a few hot words is still there at the end;
+//   - after add/remove/addmeaning churn on a small set of words, the store, the headword index,
+//     the meaning index and the response cache all agree on which words exist.
+public class WriteStress {
+    private static final int HOT_WORDS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int words = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        DictionaryServer.buildIndexes();
+        for (int i = 0; i < words; i++) {
+            expect(request("add", word(i), null, Arrays.asList(token(i), "first meaning")), "success");
+        }
+        System.out.printf("%d words, %d cores%n", words, Runtime.getRuntime().availableProcessors());
+        System.out.println("writers   writes/s    reads/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            throughput(threads, seconds, words);
+        }
+        boolean ok = lostWrites(Math.max(2, maxThreads), words) & churn(Math.max(2, maxThreads));
+        System.out.println(ok ? "checks passed" : "CHECKS FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void throughput(int threads, int seconds, int words) throws Exception {
+        LongAdder writes = new LongAdder();
+        LongAdder reads = new LongAdder();
+        AtomicLong unique = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    // Half the writes go to the hot words, so they contend with each other and the reader
+                    int i = random.nextBoolean() ? random.nextInt(HOT_WORDS) : random.nextInt(words);
+                    String word = word(i);
+                    int op = random.nextInt(10);
+                    if (op < 6) {
+                        List<String> meanings = query(word);
+                        if (meanings != null && meanings.size() > 1) {
+                            String old = meanings.get(meanings.size() - 1);
+                            request("update", word, old, null, "changed " + unique.incrementAndGet());
+                        }
+                    } else if (op < 9) {
+                        request("addmeaning", word, "added " + unique.incrementAndGet(), null);
+                    } else {
+                        request("remove", word, null, null);
+                        request("add", word, null, Arrays.asList(token(i), "first meaning"));
+                    }
+                    writes.increment();
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                query(word(random.nextInt(HOT_WORDS)));
+                reads.increment();
+            }
+        });
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        reader.start();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        reader.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%7d %10.0f %10.0f%n", threads, writes.sum() / elapsed, reads.sum() / elapsed);
+        // Put the words back to two meanings so later runs start alike
+        for (int i = 0; i < words; i++) {
+            request("remove", word(i), null, null);
+            request("add", word(i), null, Arrays.asList(token(i), "first meaning"));
+        }
+    }
+
+    // Concurrent addmeanings on the same few words: each one that succeeded must still be there
+    private static boolean lostWrites(int threads, int words) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ConcurrentHashMap<String, LongAdder> succeeded = new ConcurrentHashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int n = 0; n < 2000; n++) {
+                    String word = word(random.nextInt(4));
+                    DictionaryServer.ResponseMessage res = request("addmeaning", word, "t" + thread + " n" + n, null);
+                    if ("success".equals(res.status)) {
+                        succeeded.computeIfAbsent(word, w -> new LongAdder()).increment();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        boolean ok = true;
+        for (int i = 0; i < 4; i++) {
+            long expected = 2 + succeeded.getOrDefault(word(i), new LongAdder()).sum();
+            int actual = query(word(i)).size();
+            if (actual != expected) {
+                System.out.printf("lost writes on %s: %d meanings, expected %d%n", word(i), actual, expected);
+                ok = false;
+            }
+        }
+        System.out.println("lost writes check: " + (ok ? "ok" : "FAILED"));
+        return ok;
+    }
+
+    // Add, remove and addmeaning racing on a few words; afterwards every index must agree with the store
+    private static boolean churn(int threads) throws Exception {
+        int count = 8;
+        int base = 1_000_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int n = 0; n < 50000; n++) {
+                    int i = base + random.nextInt(count);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            request("add", word(i), null, Arrays.asList(token(i)));
+                            break;
+                        case 1:
+                            request("remove", word(i), null, null);
+                            break;
+                        case 2:
+                            request("addmeaning", word(i), "extra " + random.nextInt(1000), null);
+                            break;
+                        default:
+                            query(word(i));
+                            break;
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        boolean ok = true;
+        for (int i = base; i < base + count; i++) {
+            boolean stored = query(word(i)) != null;
+            DictionaryServer.RequestMessage prefix = new DictionaryServer.RequestMessage();
+            prefix.type = "prefix";
+            prefix.word = word(i);
+            boolean indexed = DictionaryServer.processRequest(prefix).data.contains(word(i));
+            DictionaryServer.RequestMessage search = new DictionaryServer.RequestMessage();
+            search.type = "search";
+            search.meaning = token(i);
+            boolean searchable = DictionaryServer.processRequest(search).data.contains(word(i));
+            // Goes through the response cache, which must not hold an answer from before the last change
+            DictionaryServer.RequestMessage cached = new DictionaryServer.RequestMessage();
+            cached.type = "query";
+            cached.word = word(i);
+            boolean answered = new String(DictionaryServer.handleRequest(cached)).contains("\"success\"");
+            if (stored != indexed || stored != searchable || stored != answered) {
+                System.out.printf("%s: store %b, headwords %b, meanings %b, cached query %b%n",
+                        word(i), stored, indexed, searchable, answered);
+                ok = false;
+            }
+        }
+        System.out.println("index agreement check: " + (ok ? "ok" : "FAILED"));
+        return ok;
+    }
+
+    private static List<String> query(String word) {
+        DictionaryServer.ResponseMessage res = request("query", word, null, null);
+        return "success".equals(res.status) ? res.data : null;
+    }
+
+    private static DictionaryServer.ResponseMessage request(String type, String word, String meaning, List<String> meanings) {
+        return request(type, word, meaning, meanings, null);
+    }
+
+    // For "update", meaning is the old meaning
+    private static DictionaryServer.ResponseMessage request(String type, String word, String meaning,
+                                                            List<String> meanings, String newMeaning) {
+        DictionaryServer.RequestMessage req = new DictionaryServer.RequestMessage();
+        req.type = type;
+        req.word = word;
+        req.meanings = meanings;
+        if ("update".equals(type)) {
+            req.oldMeaning = meaning;
+            req.newMeaning = newMeaning;
+        } else {
+            req.meaning = meaning;
+        }
+        return DictionaryServer.processRequest(req);
+    }
+
+    private static void expect(DictionaryServer.ResponseMessage res, String status) {
+        if (!status.equals(res.status)) {
+            throw new IllegalStateException(res.message);
+        }
+    }
+
+    private static String word(int i) {
+        return "word" + i;
+    }
+
+    // A meaning word only this headword uses, so a search for it finds exactly that word
+    private static String token(int i) {
+        return "token" + i;
+    }
+}
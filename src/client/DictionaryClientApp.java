@@ -10,6 +10,9 @@ import client.net.DictionaryClientCore;
 import client.ui.DictionaryClientGUI;
 import javax.swing.SwingUtilities;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.JOptionPane;
 
 
@@ -17,6 +20,23 @@ public class DictionaryClientApp {
     public static void main(String[] args) {
         String serverAddress = "localhost";
         int serverPort = 12345;
+        // A third argument "binary" uses the compact binary protocol instead of JSON lines
+        boolean binary = args.length >= 3 && "binary".equalsIgnoreCase(args[2]);
+        // Query answers kept locally, and for how long; 0 entries turns the cache off
+        int cacheEntries = Integer.getInteger("dictionary.client.cacheEntries", 10000);
+        long cacheTtlMs = Long.getLong("dictionary.client.cacheTtlMs", 60000L);
+        // Read-only replicas of the server, as "host:port,host:port"; reads are spread over them
+        List<InetSocketAddress> replicas = new ArrayList<>();
+        for (String replica : System.getProperty("dictionary.client.replicas", "").split(",")) {
+            int colon = replica.lastIndexOf(':');
+            if (colon > 0) {
+                try {
+                    replicas.add(new InetSocketAddress(replica.substring(0, colon).trim(), Integer.parseInt(replica.substring(colon + 1).trim())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid replica address " + replica + ", ignored.");
+                }
+            }
+        }
 
         if (args.length >= 2) {
             serverAddress = args[0];
@@ -27,8 +47,20 @@ public class DictionaryClientApp {
             }
         }
 
+        // The shards of a sharded dictionary, as "host:port,host:port"; when given, the address
+        // arguments are not used
+        List<String> shards = new ArrayList<>();
+        for (String shard : System.getProperty("dictionary.client.shards", "").split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(shard.trim());
+            }
+        }
+
         try {
-            DictionaryClientCore clientCore = new DictionaryClientCore(serverAddress, serverPort);
+            DictionaryClientCore clientCore = !shards.isEmpty()
+                    ? new DictionaryClientCore(shards, binary, DictionaryClientCore.DEFAULT_POOL_SIZE, cacheEntries, cacheTtlMs)
+                    : new DictionaryClientCore(serverAddress, serverPort, binary,
+                            DictionaryClientCore.DEFAULT_POOL_SIZE, cacheEntries, cacheTtlMs, replicas);
             SwingUtilities.invokeLater(() -> {
                 DictionaryClientGUI gui = new DictionaryClientGUI(clientCore);
                 gui.setVisible(true);
@@ -0,0 +1,240 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package client;
+
+import client.net.DictionaryClientCore;
+import client.net.HashRing;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Moves words between the shards of a sharded dictionary when shards are added or removed:
+//
+//   java -cp <classes> client.ShardRebalancer <old host:port,...> <new host:port,...>
+//
+// Only the parts of the hash ring whose shard differs between the old and the new list move (see
+// HashRing.changesTo); every other word stays where it is. For each shard that gives up words, the
+// words in those parts are listed with a "keys" request, then in chunks of CHUNK words read with
+// "mquery", written to their new shard with "madd" and removed from the old one. A word the new
+// shard already has is not overwritten, as a client on the new list wrote it there.
+//
+// A client still on the old list may change a word between its read and its removal. Removes
+// therefore carry the meanings read, and the old shard only removes a word that still has them.
+// If it has changed, it is read again and the copy on the new shard is replaced, unless a client
+// on the new list has written that copy since, and the removal is tried again. A word removed
+// from the old shard meanwhile has its copy removed too.
+//
+// To add a shard: start it empty, run the rebalancer, point the clients at the new list, and run
+// the rebalancer again to move the words written to the old owners in between. Clients on the old
+// list do not see a word once it has moved, so switch them over soon after the first run.
+public class ShardRebalancer {
+    private static final int CHUNK = 1000;
+    // Times a word changed on its old shard during its move is read and copied again
+    private static final int MAX_ATTEMPTS = 100;
+
+    private static final Gson gson = new Gson();
+
+    private final Map<String, DictionaryClientCore> clients = new HashMap<>();
+    private long moved;
+    private long kept;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java client.ShardRebalancer <old host:port,...> <new host:port,...>");
+            System.exit(2);
+        }
+        HashRing oldRing = new HashRing(Arrays.asList(args[0].split(",")));
+        HashRing newRing = new HashRing(Arrays.asList(args[1].split(",")));
+        ShardRebalancer rebalancer = new ShardRebalancer();
+        try {
+            rebalancer.rebalance(oldRing, newRing);
+            System.out.println("Rebalanced: " + rebalancer.moved + " words moved, "
+                    + rebalancer.kept + " already on their new shard.");
+        } catch (IOException e) {
+            System.err.println("Rebalance failed: " + e.getMessage() + ". Running it again carries on.");
+            System.exit(1);
+        } finally {
+            rebalancer.clients.values().forEach(DictionaryClientCore::close);
+        }
+    }
+
+    private void rebalance(HashRing oldRing, HashRing newRing) throws IOException {
+        // The parts each shard gives up, as "keys" ranges
+        Map<String, List<String>> ranges = new LinkedHashMap<>();
+        for (HashRing.Move move : oldRing.changesTo(newRing)) {
+            ranges.computeIfAbsent(move.from, from -> new ArrayList<>()).add(move.start + ":" + move.end);
+        }
+        for (Map.Entry<String, List<String>> source : ranges.entrySet()) {
+            JsonObject keys = new JsonObject();
+            keys.addProperty("type", "keys");
+            keys.add("ranges", gson.toJsonTree(source.getValue()));
+            JsonObject res = call(source.getKey(), keys);
+            List<String> words = new ArrayList<>();
+            for (JsonElement word : res.getAsJsonArray("data")) {
+                words.add(word.getAsString());
+            }
+            System.out.println(source.getKey() + ": " + words.size() + " words to move in "
+                    + source.getValue().size() + " ranges");
+            for (int from = 0; from < words.size(); from += CHUNK) {
+                moveChunk(source.getKey(), words.subList(from, Math.min(from + CHUNK, words.size())), newRing);
+            }
+        }
+    }
+
+    private void moveChunk(String source, List<String> words, HashRing newRing) throws IOException {
+        JsonObject query = batch("mquery");
+        for (String word : words) {
+            query.getAsJsonArray("items").add(item(word));
+        }
+        JsonArray entries = call(source, query).getAsJsonArray("results");
+
+        // Copy each word that is still there to its new shard, one batch per shard
+        Map<String, JsonElement> read = new LinkedHashMap<>();
+        Map<String, JsonObject> adds = new LinkedHashMap<>();
+        for (int i = 0; i < words.size(); i++) {
+            JsonObject entry = entries.get(i).getAsJsonObject();
+            if (!"success".equals(entry.get("status").getAsString())) {
+                continue;   // Removed since it was listed
+            }
+            read.put(words.get(i), entry.get("data"));
+            JsonObject add = item(words.get(i));
+            add.add("meanings", entry.get("data"));
+            adds.computeIfAbsent(target(newRing, words.get(i)), t -> batch("madd")).getAsJsonArray("items").add(add);
+        }
+        // The words whose copy on the new shard is the one made here
+        Set<String> copied = new HashSet<>();
+        for (Map.Entry<String, JsonObject> add : adds.entrySet()) {
+            JsonArray items = add.getValue().getAsJsonArray("items");
+            JsonArray results = call(add.getKey(), add.getValue()).getAsJsonArray("results");
+            for (int i = 0; i < items.size(); i++) {
+                if ("success".equals(results.get(i).getAsJsonObject().get("status").getAsString())) {
+                    moved++;
+                    copied.add(items.get(i).getAsJsonObject().get("word").getAsString());
+                } else {
+                    kept++;
+                }
+            }
+        }
+
+        // Only once every copy is made, remove them from the old shard if unchanged, pipelined
+        Map<String, CompletableFuture<String>> removes = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> word : read.entrySet()) {
+            removes.put(word.getKey(), client(source).send(gson.toJson(removeIf(word.getKey(), word.getValue()))));
+        }
+        for (Map.Entry<String, CompletableFuture<String>> remove : removes.entrySet()) {
+            JsonObject res = JsonParser.parseString(join(remove.getValue())).getAsJsonObject();
+            if (!"success".equals(res.get("status").getAsString())) {
+                String word = remove.getKey();
+                settle(source, target(newRing, word), word, read.get(word), copied.contains(word));
+            }
+        }
+    }
+
+    // Finish moving a word whose conditional remove from the old shard failed: it was changed or
+    // removed there after it was read. meanings are those last copied; ours says whether the new
+    // shard still has the copy made here.
+    private void settle(String source, String target, String word, JsonElement meanings, boolean ours) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            JsonObject current = send(source, query(word));
+            if (!"success".equals(current.get("status").getAsString())) {
+                // Removed from the old shard, so the copy goes too
+                if (ours) {
+                    send(target, removeIf(word, meanings));
+                }
+                return;
+            }
+            JsonElement latest = current.get("data");
+            if (ours) {
+                // Replace the copy, unless a client on the new list has changed or removed it
+                ours = "success".equals(send(target, removeIf(word, meanings)).get("status").getAsString());
+                if (ours) {
+                    JsonObject add = item(word);
+                    add.addProperty("type", "add");
+                    add.add("meanings", latest);
+                    ours = "success".equals(send(target, add).get("status").getAsString());
+                }
+            }
+            meanings = latest;
+            if ("success".equals(send(source, removeIf(word, latest)).get("status").getAsString())) {
+                return;
+            }
+        }
+        throw new IOException("\"" + word + "\" kept changing on " + source + " while being moved");
+    }
+
+    // The response of a shard to a request, whether it succeeded or not
+    private JsonObject send(String shard, JsonObject request) throws IOException {
+        return JsonParser.parseString(join(client(shard).send(gson.toJson(request)))).getAsJsonObject();
+    }
+
+    // The successful response of a request to a shard
+    private JsonObject call(String shard, JsonObject request) throws IOException {
+        JsonObject res = send(shard, request);
+        if (!"success".equals(res.get("status").getAsString())) {
+            throw new IOException(shard + " refused " + request.get("type").getAsString() + ": " + res.get("message").getAsString());
+        }
+        return res;
+    }
+
+    private DictionaryClientCore client(String shard) throws IOException {
+        DictionaryClientCore client = clients.get(shard);
+        if (client == null) {
+            int colon = shard.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Shard must be host:port, not " + shard);
+            }
+            // No cache: every read must come from the shard as it is now
+            client = new DictionaryClientCore(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1)),
+                    false, DictionaryClientCore.DEFAULT_POOL_SIZE, 0, 0);
+            clients.put(shard, client);
+        }
+        return client;
+    }
+
+    private static String join(CompletableFuture<String> response) throws IOException {
+        try {
+            return response.join();
+        } catch (RuntimeException e) {
+            throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
+    }
+
+    private static JsonObject batch(String type) {
+        JsonObject batch = new JsonObject();
+        batch.addProperty("type", type);
+        batch.add("items", new JsonArray());
+        return batch;
+    }
+
+    private static String target(HashRing newRing, String word) {
+        return newRing.nodes().get(newRing.owner(word));
+    }
+
+    private static JsonObject query(String word) {
+        JsonObject query = item(word);
+        query.addProperty("type", "query");
+        return query;
+    }
+
+    // A remove that only goes ahead if the word still has these meanings
+    private static JsonObject removeIf(String word, JsonElement meanings) {
+        JsonObject remove = item(word);
+        remove.addProperty("type", "remove");
+        remove.add("meanings", meanings);
+        return remove;
+    }
+
+    private static JsonObject item(String word) {
+        JsonObject item = new JsonObject();
+        item.addProperty("word", word);
+        return item;
+    }
+}
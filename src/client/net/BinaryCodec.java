@@ -0,0 +1,310 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+
+package client.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// Client side of the server's binary protocol (see server.BinaryProtocol for the frame layout).
+// Requests are given and responses returned as JSON text, as in JSON mode, so callers do not
+// change; only what goes over the connection does. Requests the protocol has no opcode for, or
+// whose fields do not fit it, travel as JSON inside a frame.
+final class BinaryCodec {
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte VERSION = 1;
+
+    private static final int QUERY = 1;
+    private static final int ADD = 2;
+    private static final int REMOVE = 3;
+    private static final int UPDATE = 4;
+    private static final int ADDMEANING = 5;
+    private static final int PREFIX = 6;
+    private static final int SEARCH = 7;
+    private static final int INVALIDATE = 8;
+    private static final int JSON = 16;
+
+    private static final int OK = 0;
+    private static final int NOT_FOUND = 1;
+    private static final int EXISTS = 2;
+    private static final int JSON_RESPONSE = 4;
+
+    private BinaryCodec() {
+    }
+
+    // The request frame, with its length, for a JSON request
+    static byte[] encodeRequest(String jsonRequest, int id) {
+        Frame out = new Frame();
+        JsonObject req = parseObject(jsonRequest);
+        JsonElement type = req == null ? null : req.get("type");
+        int opcode = type != null && type.isJsonPrimitive() ? opcode(type.getAsString()) : JSON;
+        try {
+            if (opcode != JSON) {
+                out.header(opcode, id);
+                writeFields(out, opcode, req);
+                return out.frame();
+            }
+        } catch (IllegalArgumentException e) {
+            out = new Frame();              // a field of the wrong shape; let the server say what is wrong
+        }
+        out.header(JSON, id);
+        byte[] line = jsonRequest.getBytes(StandardCharsets.UTF_8);
+        out.bytes(line, 0, line.length);
+        return out.frame();
+    }
+
+    // The id of a response frame, without its length, or null if it has none
+    static String responseId(byte[] frame) {
+        int id = (frame[2] & 0xff) << 24 | (frame[3] & 0xff) << 16 | (frame[4] & 0xff) << 8 | (frame[5] & 0xff);
+        return id == 0 ? null : Integer.toUnsignedString(id);
+    }
+
+    // The changed word if the frame, without its length, is a push of a change rather than a
+    // response, otherwise null
+    static String invalidatedWord(byte[] frame) {
+        if ((frame[0] & 0xff) != INVALIDATE) {
+            return null;
+        }
+        int[] position = { 6 };
+        readString(frame, position);
+        JsonArray data = readStrings(frame, position);
+        return data == null || data.size() == 0 ? null : data.get(0).getAsString();
+    }
+
+    // A response frame, without its length, as the JSON response line the server would have sent
+    static String decodeResponse(byte[] frame, Gson gson) {
+        int opcode = frame[0] & 0xff;
+        int status = frame[1] & 0xff;
+        if (status == JSON_RESPONSE) {
+            return new String(frame, 6, frame.length - 6, StandardCharsets.UTF_8);
+        }
+        int[] position = { 6 };
+        String message = readString(frame, position);
+        JsonArray data = readStrings(frame, position);
+        JsonObject res = new JsonObject();
+        String id = responseId(frame);
+        if (id != null) {
+            res.addProperty("id", id);
+        }
+        res.addProperty("status", status == OK ? "success" : "error");
+        if (status == NOT_FOUND) {
+            message = "Word not found.";
+            if (data != null && data.size() > 0) {
+                message += "\nSimilar word found: " + data.get(0).getAsString();
+            }
+            data = null;
+        } else if (status == EXISTS) {
+            message = "Word already exists.";
+        } else if (status == OK && message == null) {
+            message = usualMessage(opcode);
+        }
+        res.addProperty("message", message);
+        if (data != null) {
+            res.add("data", data);
+        }
+        return gson.toJson(res);
+    }
+
+    private static JsonObject parseObject(String json) {
+        try {
+            JsonElement element = JsonParser.parseString(json);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int opcode(String type) {
+        switch (type.toLowerCase()) {
+            case "query":
+                return QUERY;
+            case "add":
+                return ADD;
+            case "remove":
+                return REMOVE;
+            case "update":
+                return UPDATE;
+            case "addmeaning":
+                return ADDMEANING;
+            case "prefix":
+                return PREFIX;
+            case "search":
+                return SEARCH;
+            default:
+                return JSON;
+        }
+    }
+
+    private static void writeFields(Frame out, int opcode, JsonObject req) {
+        switch (opcode) {
+            case ADD:
+                out.string(string(req, "word"));
+                JsonElement meanings = req.get("meanings");
+                if (meanings == null || meanings.isJsonNull()) {
+                    out.varint(0);
+                } else if (!meanings.isJsonArray()) {
+                    throw new IllegalArgumentException("meanings");
+                } else {
+                    out.varint(meanings.getAsJsonArray().size() + 1);
+                    for (JsonElement meaning : meanings.getAsJsonArray()) {
+                        out.string(meaning.isJsonNull() ? null : primitive(meaning));
+                    }
+                }
+                break;
+            case UPDATE:
+                out.string(string(req, "word"));
+                out.string(string(req, "oldMeaning"));
+                out.string(string(req, "newMeaning"));
+                break;
+            case ADDMEANING:
+                out.string(string(req, "word"));
+                out.string(string(req, "meaning"));
+                break;
+            case PREFIX:
+                out.string(string(req, "word"));
+                out.varint(limit(req) + 1);
+                break;
+            case SEARCH:
+                out.string(string(req, "meaning"));
+                out.string(string(req, "mode"));
+                out.varint(limit(req) + 1);
+                break;
+            default:
+                out.string(string(req, "word"));
+                break;
+        }
+    }
+
+    private static String string(JsonObject req, String name) {
+        JsonElement value = req.get(name);
+        return value == null || value.isJsonNull() ? null : primitive(value);
+    }
+
+    private static String primitive(JsonElement value) {
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("not a string");
+        }
+        return value.getAsString();
+    }
+
+    // The limit, or -1 if there is none
+    private static int limit(JsonObject req) {
+        JsonElement value = req.get("limit");
+        if (value == null || value.isJsonNull()) {
+            return -1;
+        }
+        if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) {
+            throw new IllegalArgumentException("limit");
+        }
+        int limit = value.getAsInt();
+        if (limit < 0 || limit == Integer.MAX_VALUE || limit != value.getAsDouble()) {
+            throw new IllegalArgumentException("limit");
+        }
+        return limit;
+    }
+
+    private static String usualMessage(int opcode) {
+        switch (opcode) {
+            case QUERY:
+                return "Query successful.";
+            case ADD:
+                return "Word added successfully.";
+            case REMOVE:
+                return "Word removed successfully.";
+            case PREFIX:
+                return "Prefix search successful.";
+            case SEARCH:
+                return "Search successful.";
+            default:
+                return null;
+        }
+    }
+
+    private static String readString(byte[] frame, int[] position) {
+        int length = readVarint(frame, position) - 1;
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(frame, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return s;
+    }
+
+    private static JsonArray readStrings(byte[] frame, int[] position) {
+        int size = readVarint(frame, position) - 1;
+        if (size < 0) {
+            return null;
+        }
+        JsonArray list = new JsonArray(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(frame, position));
+        }
+        return list;
+    }
+
+    private static int readVarint(byte[] frame, int[] position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = frame[position[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+
+    // A frame being written, with room for its length at the front
+    private static class Frame extends ByteArrayOutputStream {
+        Frame() {
+            super(64);
+            count = 4;
+        }
+
+        void header(int opcode, int id) {
+            write(opcode);
+            write(id >>> 24);
+            write(id >>> 16);
+            write(id >>> 8);
+            write(id);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length + 1);
+            bytes(utf8, 0, utf8.length);
+        }
+
+        void bytes(byte[] b, int offset, int length) {
+            write(b, offset, length);
+        }
+
+        byte[] frame() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return toByteArray();
+        }
+    }
+}
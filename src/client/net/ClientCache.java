@@ -0,0 +1,118 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+
+package client.net;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Successful query answers kept on the client, so repeated lookups of a word need no round trip.
+// An answer is kept for at most the time to live, and the least recently used go once there are
+// maxEntries. Connections subscribe to the server's changes, and a word is dropped as soon as the
+// server says it changed. An answer is only cached if the connection it came on is subscribed, as
+// with replicas or shards other connections may be to servers whose changes never reach us.
+// Everything is dropped when a subscribed connection closes, since changes pushed meanwhile would
+// be missed.
+// As in the server's response cache, a query only gets to cache its answer if its word was not
+// invalidated while the query was in flight.
+class ClientCache {
+    private static final int STRIPES = 1024;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final long[] stamps = new long[STRIPES];
+    private final Set<Object> subscribed = new HashSet<>();
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        final String response;
+        final long expires;
+
+        Entry(String response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    ClientCache(int maxEntries, long ttlNanos) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ClientCache.this.maxEntries;
+            }
+        };
+    }
+
+    // The cached response line for the word, or null
+    synchronized String get(String word) {
+        Entry entry = entries.get(word);
+        if (entry != null && entry.expires - System.nanoTime() < 0) {
+            entries.remove(word);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    // Taken before the query is sent; put only caches the answer if the word has not been
+    // invalidated since
+    synchronized long stamp(String word) {
+        return stamps[stripe(word)];
+    }
+
+    // The answer came on the given connection
+    synchronized void put(String word, long stamp, Object connection, String response) {
+        if (subscribed.contains(connection) && stamps[stripe(word)] == stamp) {
+            entries.put(word, new Entry(response, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    // Called when the server pushes a change to the word, and when this client changes it
+    synchronized void invalidate(String word) {
+        stamps[stripe(word)]++;
+        entries.remove(word);
+    }
+
+    // A connection's subscription was accepted
+    synchronized void subscribed(Object connection) {
+        subscribed.add(connection);
+    }
+
+    // A connection closed. If it was subscribed, changes may have been missed, so everything goes,
+    // and queries in flight do not get to cache what they read.
+    synchronized void closed(Object connection) {
+        if (!subscribed.remove(connection)) {
+            return;
+        }
+        entries.clear();
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i]++;
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    private static int stripe(String word) {
+        int h = word.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
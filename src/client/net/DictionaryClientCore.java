@@ -6,38 +6,699 @@
 
 package client.net;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+// Client for the dictionary server: a small pool of connections, each carrying any number of
+// requests at once, so many threads can share one client. Requests are JSON text, and each send
+// returns a future of the JSON response line; nothing blocks the caller. Requests go to the open
+// connections in turn. A request fails with a TimeoutException if the server does not answer in
+// time, and with an IOException if its connection drops or none is open.
+// A connection that drops is reopened in the background, waiting twice as long after each failed
+// attempt, from MIN_BACKOFF_MS up to MAX_BACKOFF_MS, with some jitter so that many clients do not
+// all come back at the same moment.
+// With a cache, successful query answers are kept on the client (see ClientCache) and every
+// connection subscribes to the server's changes to keep them current. query() is served from the
+// cache; changes this client sends through send() drop the words they touch once answered.
+// With replicas, reads (query, prefix, search, mquery) go to the replicas in turn and everything
+// else to the primary. A read goes to the primary instead when no replica connection is open, and
+// is sent there again if its replica drops or says it is behind. Replica connections subscribe too,
+// so a cached answer read from a replica is dropped once that replica applies the change.
+// A sharded client has a pool for each shard and sends each word's requests to the shard that
+// owns it (see HashRing). Batches are split by shard and their results put back in order; prefix,
+// search and stats go to every shard and the answers are merged. When a query misses, every shard
+// is asked for its closest word at once, and the closest of those is suggested.
 public class DictionaryClientCore {
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private Gson gson;
+    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final long DEFAULT_TIMEOUT_MS = 10_000;
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5_000;
+    private static final String SUBSCRIBE = "{\"type\":\"subscribe\"}";
+    private static final String REPLICA_BEHIND = "Replica is behind the primary.";
+    private static final String NOT_FOUND = "Word not found.";
+    // As on the server, for merging prefix and search answers from the shards
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 100;
+
+    private final InetSocketAddress address;
+    private final boolean binary;
+    private final Gson gson = new Gson();
+    // Null while a connection is being reopened
+    private final AtomicReferenceArray<DictionaryConnection> connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor timer;        // request timeouts
+    private final ScheduledExecutorService reconnector;     // reopens dropped connections
+    private final ClientCache cache;                        // null without a cache
+    private final List<DictionaryClientCore> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final HashRing ring;                            // null unless sharded
+    private final List<DictionaryClientCore> shards = new ArrayList<>();
+    private volatile boolean closed;
 
     public DictionaryClientCore(String serverAddress, int serverPort) throws IOException {
-        socket = new Socket(serverAddress, serverPort);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        writer = new PrintWriter(socket.getOutputStream(), true);
-        gson = new Gson();
+        this(serverAddress, serverPort, false);
+    }
+
+    // With binary set, requests and responses travel in the server's compact binary protocol.
+    // They are still given and returned as JSON text, so callers work the same in either mode.
+    public DictionaryClientCore(String serverAddress, int serverPort, boolean binary) throws IOException {
+        this(serverAddress, serverPort, binary, DEFAULT_POOL_SIZE);
+    }
+
+    // Opens the connections before returning. Throws if the first one cannot be opened, so a
+    // wrong address or a server that is down is reported to the caller; any other that fails is
+    // retried in the background.
+    public DictionaryClientCore(String serverAddress, int serverPort, boolean binary, int poolSize) throws IOException {
+        this(serverAddress, serverPort, binary, poolSize, 0, 0);
+    }
+
+    // Caches up to cacheEntries query answers, each for at most cacheTtlMs; no cache if cacheEntries is 0
+    public DictionaryClientCore(String serverAddress, int serverPort, boolean binary, int poolSize,
+                                int cacheEntries, long cacheTtlMs) throws IOException {
+        this(serverAddress, serverPort, binary, poolSize, cacheEntries, cacheTtlMs, Collections.emptyList());
+    }
+
+    // Reads go to the given replicas of the server, each with a pool of its own. A replica that
+    // cannot be reached yet is retried in the background, as a dropped connection is.
+    public DictionaryClientCore(String serverAddress, int serverPort, boolean binary, int poolSize,
+                                int cacheEntries, long cacheTtlMs, List<InetSocketAddress> replicaAddresses) throws IOException {
+        this(new InetSocketAddress(serverAddress, serverPort), binary, poolSize, newCache(cacheEntries, cacheTtlMs), true);
+        for (InetSocketAddress replica : replicaAddresses) {
+            replicas.add(new DictionaryClientCore(replica, binary, poolSize, cache, false));
+        }
+    }
+
+    // A client of a sharded dictionary, given its shards as "host:port". Every shard must be
+    // reachable now; one that drops later is reconnected to as usual.
+    public DictionaryClientCore(List<String> shardAddresses, boolean binary, int poolSize,
+                                int cacheEntries, long cacheTtlMs) throws IOException {
+        this(null, binary, poolSize, newCache(cacheEntries, cacheTtlMs), false, new HashRing(shardAddresses));
+        try {
+            for (String shard : shardAddresses) {
+                int colon = shard.lastIndexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Shard must be host:port, not " + shard);
+                }
+                InetSocketAddress address = new InetSocketAddress(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1)));
+                shards.add(new DictionaryClientCore(address, binary, poolSize, cache, true));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private DictionaryClientCore(InetSocketAddress address, boolean binary, int poolSize, ClientCache cache,
+                                 boolean required) throws IOException {
+        this(address, binary, poolSize, cache, required, null);
+    }
+
+    // The pool for one server, or with no address, none (a sharded client's own). If required,
+    // the first connection must open.
+    private DictionaryClientCore(InetSocketAddress address, boolean binary, int poolSize, ClientCache cache,
+                                 boolean required, HashRing ring) throws IOException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.address = address;
+        this.binary = binary;
+        this.cache = cache;
+        this.ring = ring;
+        this.connections = new AtomicReferenceArray<>(address == null ? 0 : poolSize);
+        this.timer = new ScheduledThreadPoolExecutor(1, daemon("dictionary-client-timer"));
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(daemon("dictionary-client-reconnect"));
+        for (int slot = 0; slot < connections.length(); slot++) {
+            try {
+                install(slot, open(slot));
+            } catch (IOException e) {
+                if (slot == 0 && required) {
+                    close();
+                    throw e;
+                }
+                reconnect(slot, MIN_BACKOFF_MS);
+            }
+        }
     }
 
-    public void sendRequest(String jsonRequest) {
-        writer.println(jsonRequest);
+    public CompletableFuture<String> send(String jsonRequest) {
+        return send(jsonRequest, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
 
-    public String readResponse() throws IOException {
-        return reader.readLine();
+    public CompletableFuture<String> send(String jsonRequest, long timeout, TimeUnit unit) {
+        if (cache == null && replicas.isEmpty() && ring == null) {
+            return sendRaw(jsonRequest, timeout, unit);
+        }
+        JsonObject req = parse(jsonRequest);
+        String type = req == null ? null : string(req, "type");
+        CompletableFuture<String> response;
+        if (ring != null) {
+            response = route(req, type == null ? "" : type.toLowerCase(), jsonRequest, timeout, unit);
+        } else if (!replicas.isEmpty() && isRead(type)) {
+            response = read(jsonRequest, timeout, unit);
+        } else {
+            response = sendRaw(jsonRequest, timeout, unit);
+        }
+        if (cache == null) {
+            return response;
+        }
+        List<String> changed = changedWords(req);
+        if (changed.isEmpty()) {
+            return response;
+        }
+        // The server's push may come later, or on another connection, so this client would not
+        // see its own change in time without dropping the words itself
+        return response.whenComplete((line, error) -> changed.forEach(cache::invalidate));
+    }
+
+    // The response line to a query of the word, without an id. Served from the cache if there is
+    // one and it has the answer.
+    public CompletableFuture<String> query(String word) {
+        JsonObject req = new JsonObject();
+        req.addProperty("type", "query");
+        req.addProperty("word", word);
+        String json = gson.toJson(req);
+        if (cache == null) {
+            return send(json).thenApply(DictionaryClientCore::withoutId);
+        }
+        String cached = cache.get(word);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long stamp = cache.stamp(word);
+        return ask(word, json, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS).thenCompose(answer -> {
+            String response = withoutId(answer.line);
+            if (response.contains("\"status\":\"success\"")) {
+                // Only the answering connection's subscription says its server's changes will reach us
+                cache.put(word, stamp, answer.connection, response);
+                return CompletableFuture.completedFuture(response);
+            }
+            if (ring == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            return withClosestWord(parse(answer.line), word, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .thenApply(res -> res == null ? response : gson.toJson(res));
+        });
+    }
+
+    // A response line and the connection it came on
+    private static class Answer {
+        final String line;
+        final DictionaryConnection connection;
+
+        Answer(String line, DictionaryConnection connection) {
+            this.line = line;
+            this.connection = connection;
+        }
+    }
+
+    // A query of the word, routed as send routes it, answered with the connection it came on
+    private CompletableFuture<Answer> ask(String word, String jsonRequest, long timeout, TimeUnit unit) {
+        if (ring != null) {
+            return shards.get(ring.owner(word)).ask(word, jsonRequest, timeout, unit);
+        }
+        return replicas.isEmpty() ? askRaw(jsonRequest, timeout, unit) : readAnswer(jsonRequest, timeout, unit);
+    }
+
+    // Queries answered from the cache, and those that went to the server
+    public long cacheHits() {
+        return cache == null ? 0 : cache.hits();
+    }
+
+    public long cacheMisses() {
+        return cache == null ? 0 : cache.misses();
+    }
+
+    // Open connections now in the pool, or in all the shards' pools
+    public int openConnections() {
+        int open = 0;
+        for (DictionaryClientCore shard : shards) {
+            open += shard.openConnections();
+        }
+        for (int i = 0; i < connections.length(); i++) {
+            DictionaryConnection connection = connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                open++;
+            }
+        }
+        return open;
     }
 
     public Gson getGson() {
         return gson;
     }
 
-    public void close() throws IOException {
-        reader.close();
-        writer.close();
-        socket.close();
+    // Requests still waiting fail with an IOException
+    public void close() {
+        closed = true;
+        for (DictionaryClientCore replica : replicas) {
+            replica.close();
+        }
+        for (DictionaryClientCore shard : shards) {
+            shard.close();
+        }
+        for (int i = 0; i < connections.length(); i++) {
+            DictionaryConnection connection = connections.getAndSet(i, null);
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        reconnector.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private CompletableFuture<String> sendRaw(String jsonRequest, long timeout, TimeUnit unit) {
+        return askRaw(jsonRequest, timeout, unit).thenApply(answer -> answer.line);
+    }
+
+    private CompletableFuture<Answer> askRaw(String jsonRequest, long timeout, TimeUnit unit) {
+        DictionaryConnection connection = pick();
+        if (connection == null) {
+            CompletableFuture<Answer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException(closed ? "Client closed." : "Not connected to the server."));
+            return failed;
+        }
+        return connection.send(jsonRequest, Math.max(1, unit.toMillis(timeout))).thenApply(line -> new Answer(line, connection));
+    }
+
+    // A request of a sharded client, sent to the shards it concerns
+    private CompletableFuture<String> route(JsonObject req, String type, String jsonRequest, long timeout, TimeUnit unit) {
+        switch (type) {
+            case "query":
+                return ownerOf(req).sendRaw(jsonRequest, timeout, unit)
+                        .thenCompose(line -> withClosestWord(parse(line), string(req, "word"), timeout, unit)
+                                .thenApply(res -> res == null ? line : gson.toJson(res)));
+            case "add":
+            case "remove":
+            case "update":
+            case "addmeaning":
+            case "suggest":
+                return ownerOf(req).sendRaw(jsonRequest, timeout, unit);
+            case "prefix":
+            case "search":
+                return everyShard(jsonRequest, timeout, unit).thenApply(lines -> mergeWords(lines, type, req));
+            case "stats":
+                return everyShard(jsonRequest, timeout, unit).thenApply(this::mergeStats);
+            case "subscribe":
+                return everyShard(jsonRequest, timeout, unit).thenApply(lines -> lines.get(0));
+            case "mquery":
+            case "madd":
+            case "maddmeaning":
+                JsonElement items = req.get("items");
+                if (items != null && items.isJsonArray() && items.getAsJsonArray().size() > 0) {
+                    return splitBatch(type, items.getAsJsonArray(), timeout, unit);
+                }
+                return shards.get(0).sendRaw(jsonRequest, timeout, unit);
+            default:
+                // Not about a word; any shard answers it the same way
+                return shards.get(0).sendRaw(jsonRequest, timeout, unit);
+        }
+    }
+
+    private DictionaryClientCore ownerOf(JsonObject req) {
+        String word = req == null ? null : string(req, "word");
+        // Without a word the request is invalid, and any shard says so
+        return shards.get(word == null ? 0 : ring.owner(word));
+    }
+
+    // The response lines of every shard, in shard order
+    private CompletableFuture<List<String>> everyShard(String jsonRequest, long timeout, TimeUnit unit) {
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (DictionaryClientCore shard : shards) {
+            responses.add(shard.sendRaw(jsonRequest, timeout, unit));
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<String> lines = new ArrayList<>();
+            for (CompletableFuture<String> response : responses) {
+                lines.add(response.join());
+            }
+            return lines;
+        });
+    }
+
+    // If the response says the word was not found, the response with the closest word of any
+    // shard suggested instead of its shard's own; otherwise null
+    private CompletableFuture<JsonObject> withClosestWord(JsonObject res, String word, long timeout, TimeUnit unit) {
+        if (res == null || word == null || shards.size() == 1 || !"error".equals(string(res, "status"))
+                || string(res, "message") == null || !string(res, "message").startsWith(NOT_FOUND)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        JsonObject suggest = new JsonObject();
+        suggest.addProperty("type", "suggest");
+        suggest.addProperty("word", word);
+        String json = gson.toJson(suggest);
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (DictionaryClientCore shard : shards) {
+            // A shard that cannot answer just has no suggestion
+            answers.add(shard.sendRaw(json, timeout, unit).exceptionally(error -> null));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            String best = null;
+            int bestDistance = Integer.MAX_VALUE;
+            for (CompletableFuture<String> answer : answers) {
+                JsonObject suggestion = answer.join() == null ? null : parse(answer.join());
+                JsonElement data = suggestion == null ? null : suggestion.get("data");
+                if (data == null || !data.isJsonArray() || data.getAsJsonArray().size() != 2) {
+                    continue;
+                }
+                String candidate = data.getAsJsonArray().get(0).getAsString();
+                int distance = data.getAsJsonArray().get(1).getAsInt();
+                // Ties go to the alphabetically first word, as on a single server
+                if (distance < bestDistance || distance == bestDistance && candidate.compareTo(best) < 0) {
+                    best = candidate;
+                    bestDistance = distance;
+                }
+            }
+            JsonObject merged = res.deepCopy();
+            merged.remove("id");
+            merged.addProperty("message", best == null ? NOT_FOUND : NOT_FOUND + "\nSimilar word found: " + best);
+            return merged;
+        });
+    }
+
+    // Prefix answers are merged in alphabetical order, as one server gives them. Search answers
+    // are ranked within each shard only, so the shards' best are taken in turn.
+    private String mergeWords(List<String> lines, String type, JsonObject req) {
+        List<List<String>> answers = new ArrayList<>();
+        for (String line : lines) {
+            JsonObject res = parse(line);
+            if (res == null || !"success".equals(string(res, "status"))) {
+                return line;
+            }
+            List<String> words = new ArrayList<>();
+            JsonElement data = res.get("data");
+            if (data != null && data.isJsonArray()) {
+                for (JsonElement word : data.getAsJsonArray()) {
+                    words.add(word.getAsString());
+                }
+            }
+            answers.add(words);
+        }
+        JsonElement requested = req.get("limit");
+        int limit = requested == null || !requested.isJsonPrimitive() ? DEFAULT_LIMIT
+                : Math.max(1, Math.min(requested.getAsInt(), MAX_LIMIT));
+        Set<String> merged;
+        if (type.equals("prefix")) {
+            merged = new TreeSet<>();
+            answers.forEach(merged::addAll);
+        } else {
+            merged = new LinkedHashSet<>();
+            for (int rank = 0; rank < limit; rank++) {
+                for (List<String> words : answers) {
+                    if (rank < words.size()) {
+                        merged.add(words.get(rank));
+                    }
+                }
+            }
+        }
+        JsonObject res = parse(lines.get(0)).deepCopy();
+        res.remove("id");
+        JsonArray data = new JsonArray();
+        merged.stream().limit(limit).forEach(data::add);
+        res.add("data", data);
+        return gson.toJson(res);
+    }
+
+    // Counts are added up over the shards; times (the keys ending in "Us") are the slowest shard's
+    private String mergeStats(List<String> lines) {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        for (String line : lines) {
+            JsonObject res = parse(line);
+            JsonElement shardStats = res == null ? null : res.get("stats");
+            if (shardStats == null || !shardStats.isJsonObject()) {
+                return line;
+            }
+            for (Map.Entry<String, JsonElement> stat : shardStats.getAsJsonObject().entrySet()) {
+                long value = stat.getValue().getAsLong();
+                stats.merge(stat.getKey(), value, stat.getKey().endsWith("Us") ? Math::max : Long::sum);
+            }
+        }
+        stats.put("shards", (long) shards.size());
+        JsonObject res = new JsonObject();
+        res.addProperty("status", "success");
+        res.addProperty("message", "Server statistics.");
+        res.add("stats", gson.toJsonTree(stats));
+        return gson.toJson(res);
+    }
+
+    // A batch split into one per shard; the item results are put back in the order of the items
+    private CompletableFuture<String> splitBatch(String type, JsonArray items, long timeout, TimeUnit unit) {
+        Map<Integer, List<Integer>> positions = new HashMap<>();
+        Map<Integer, JsonArray> parts = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonElement item = items.get(i);
+            String word = item.isJsonObject() ? string(item.getAsJsonObject(), "word") : null;
+            int shard = word == null ? 0 : ring.owner(word);
+            positions.computeIfAbsent(shard, s -> new ArrayList<>()).add(i);
+            parts.computeIfAbsent(shard, s -> new JsonArray()).add(item);
+        }
+        Map<Integer, CompletableFuture<String>> responses = new HashMap<>();
+        for (Map.Entry<Integer, JsonArray> part : parts.entrySet()) {
+            JsonObject batch = new JsonObject();
+            batch.addProperty("type", type);
+            batch.add("items", part.getValue());
+            responses.put(part.getKey(), shards.get(part.getKey()).sendRaw(gson.toJson(batch), timeout, unit));
+        }
+        return CompletableFuture.allOf(responses.values().toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            JsonElement[] results = new JsonElement[items.size()];
+            for (Map.Entry<Integer, CompletableFuture<String>> response : responses.entrySet()) {
+                JsonObject res = parse(response.getValue().join());
+                JsonElement partResults = res == null ? null : res.get("results");
+                if (partResults == null || !partResults.isJsonArray()) {
+                    return CompletableFuture.completedFuture(response.getValue().join());
+                }
+                List<Integer> at = positions.get(response.getKey());
+                for (int i = 0; i < at.size(); i++) {
+                    results[at.get(i)] = partResults.getAsJsonArray().get(i);
+                }
+            }
+            // Misses of a batch query get the closest word of any shard too
+            List<CompletableFuture<JsonObject>> suggested = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                JsonElement item = items.get(i);
+                suggested.add(type.equals("mquery") && results[i].isJsonObject() && item.isJsonObject()
+                        ? withClosestWord(results[i].getAsJsonObject(), string(item.getAsJsonObject(), "word"), timeout, unit)
+                        : CompletableFuture.completedFuture(null));
+            }
+            return CompletableFuture.allOf(suggested.toArray(new CompletableFuture<?>[0])).thenApply(all -> {
+                JsonArray merged = new JsonArray();
+                int succeeded = 0;
+                for (int i = 0; i < results.length; i++) {
+                    JsonElement result = suggested.get(i).join() != null ? suggested.get(i).join() : results[i];
+                    if (result.isJsonObject() && "success".equals(string(result.getAsJsonObject(), "status"))) {
+                        succeeded++;
+                    }
+                    merged.add(result);
+                }
+                JsonObject res = new JsonObject();
+                res.addProperty("status", "success");
+                res.addProperty("message", "Batch processed: " + succeeded + " succeeded, " + (results.length - succeeded) + " failed.");
+                res.add("results", merged);
+                return gson.toJson(res);
+            });
+        });
+    }
+
+    // A read from the next replica with an open connection, or from the primary if there is none
+    // or the replica cannot answer it
+    private CompletableFuture<String> read(String jsonRequest, long timeout, TimeUnit unit) {
+        return readAnswer(jsonRequest, timeout, unit).thenApply(answer -> answer.line);
+    }
+
+    private CompletableFuture<Answer> readAnswer(String jsonRequest, long timeout, TimeUnit unit) {
+        DictionaryClientCore replica = pickReplica();
+        if (replica == null) {
+            return askRaw(jsonRequest, timeout, unit);
+        }
+        return replica.askRaw(jsonRequest, timeout, unit).handle((answer, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null && !answer.line.contains(REPLICA_BEHIND)) {
+                return CompletableFuture.completedFuture(answer);
+            }
+            if (cause != null && !(cause instanceof IOException)) {
+                CompletableFuture<Answer> failed = new CompletableFuture<>();
+                failed.completeExceptionally(cause);
+                return failed;
+            }
+            return askRaw(jsonRequest, timeout, unit);
+        }).thenCompose(response -> response);
+    }
+
+    private DictionaryClientCore pickReplica() {
+        int size = replicas.size();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            DictionaryClientCore replica = replicas.get((start + i) % size);
+            if (replica.openConnections() > 0) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isRead(String type) {
+        return type != null && (type.equalsIgnoreCase("query") || type.equalsIgnoreCase("prefix")
+                || type.equalsIgnoreCase("search") || type.equalsIgnoreCase("mquery"));
+    }
+
+    // The request as a JSON object, or null if it is not one
+    private static JsonObject parse(String jsonRequest) {
+        try {
+            JsonElement element = JsonParser.parseString(jsonRequest);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The words a request changes if it succeeds; queries and other reads change none
+    private static List<String> changedWords(JsonObject req) {
+        if (req == null) {
+            return Collections.emptyList();
+        }
+        String type = string(req, "type");
+        if (type == null) {
+            return Collections.emptyList();
+        }
+        List<String> words = new ArrayList<>();
+        switch (type.toLowerCase()) {
+            case "add":
+            case "remove":
+            case "update":
+            case "addmeaning":
+                addWord(words, req);
+                break;
+            case "madd":
+            case "maddmeaning":
+                JsonElement items = req.get("items");
+                if (items != null && items.isJsonArray()) {
+                    for (JsonElement item : items.getAsJsonArray()) {
+                        if (item.isJsonObject()) {
+                            addWord(words, item.getAsJsonObject());
+                        }
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return words;
+    }
+
+    private static void addWord(List<String> words, JsonObject req) {
+        String word = string(req, "word");
+        if (word != null) {
+            words.add(word);
+        }
+    }
+
+    private static String string(JsonObject req, String name) {
+        JsonElement value = req.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    // Every response the server sends to a request with an id starts with it
+    private static String withoutId(String line) {
+        if (!line.startsWith("{\"id\":\"")) {
+            return line;
+        }
+        int end = line.indexOf('"', 7);
+        return line.charAt(end + 1) == ',' ? "{" + line.substring(end + 2) : "{" + line.substring(end + 1);
+    }
+
+    // No cache if cacheEntries is 0
+    private static ClientCache newCache(int cacheEntries, long cacheTtlMs) {
+        return cacheEntries > 0 ? new ClientCache(cacheEntries, TimeUnit.MILLISECONDS.toNanos(cacheTtlMs)) : null;
+    }
+
+    // The next open connection in turn, or null if none is open
+    private DictionaryConnection pick() {
+        int size = connections.length();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            DictionaryConnection connection = connections.get((start + i) % size);
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private DictionaryConnection open(int slot) throws IOException {
+        return new DictionaryConnection(address, binary, gson, timer, connection -> dropped(slot, connection),
+                cache == null ? word -> { } : cache::invalidate);
+    }
+
+    private void install(int slot, DictionaryConnection connection) {
+        if (closed) {
+            connection.close();
+            return;
+        }
+        connections.set(slot, connection);
+        if (!connection.isOpen()) {
+            dropped(slot, connection);      // it ended before it was in the pool
+        } else if (cache != null) {
+            connection.send(SUBSCRIBE, DEFAULT_TIMEOUT_MS).thenAccept(line -> {
+                if (line.contains("\"status\":\"success\"")) {
+                    cache.subscribed(connection);
+                    if (!connection.isOpen()) {
+                        cache.closed(connection);   // it closed meanwhile, maybe before being marked
+                    }
+                }
+            });
+        }
+    }
+
+    private void dropped(int slot, DictionaryConnection connection) {
+        if (cache != null) {
+            cache.closed(connection);
+        }
+        if (!closed && connections.compareAndSet(slot, connection, null)) {
+            reconnect(slot, MIN_BACKOFF_MS);
+        }
+    }
+
+    private void reconnect(int slot, long backoffMs) {
+        // Somewhere between half and all of the backoff
+        long delay = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+        try {
+            reconnector.schedule(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    install(slot, open(slot));
+                } catch (IOException e) {
+                    reconnect(slot, Math.min(backoffMs * 2, MAX_BACKOFF_MS));
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The client was closed meanwhile
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
     }
 }
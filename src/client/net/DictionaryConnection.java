@@ -0,0 +1,250 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+
+package client.net;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+// One connection to the server, in JSON lines or binary frames. Every request is tagged with a
+// fresh id, so any number of them can be in flight at once and each future completes with its own
+// response line, in whatever order the server answers. Changes the server pushes once the
+// connection has subscribed go to onInvalidate.
+class DictionaryConnection {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final Socket socket;
+    private BufferedReader reader;
+    private PrintWriter writer;
+    // Used instead of reader and writer when the connection speaks the binary protocol
+    private final boolean binary;
+    private DataInputStream input;
+    private OutputStream output;
+    private final Gson gson;
+    private final ScheduledExecutorService timer;
+    private final Consumer<DictionaryConnection> onClose;
+    private final Consumer<String> onInvalidate;
+    // Requests still waiting for their response, by id
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean closed;
+
+    // onClose runs on the receiver thread once the connection has ended and its requests have
+    // failed; onInvalidate runs there with the word of each pushed change
+    DictionaryConnection(InetSocketAddress address, boolean binary, Gson gson, ScheduledExecutorService timer,
+                         Consumer<DictionaryConnection> onClose, Consumer<String> onInvalidate) throws IOException {
+        this.binary = binary;
+        this.gson = gson;
+        this.timer = timer;
+        this.onClose = onClose;
+        this.onInvalidate = onInvalidate;
+        socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            if (binary) {
+                input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output = new BufferedOutputStream(socket.getOutputStream());
+                handshake();
+            } else {
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), true);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread receiver = new Thread(this::receive, "dictionary-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Ask for the binary protocol. A server that does not speak it never answers, so the reply is
+    // only waited for a few seconds.
+    private void handshake() throws IOException {
+        output.write(new byte[] { BinaryCodec.MAGIC, BinaryCodec.VERSION });
+        output.flush();
+        socket.setSoTimeout(5000);
+        try {
+            int first = input.read();
+            if (first == '{') {
+                // Turned away before the handshake, e.g. because the server is busy
+                String line = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)).readLine();
+                throw new IOException("Server refused the connection: {" + line);
+            }
+            if (first != (BinaryCodec.MAGIC & 0xff) || input.read() != BinaryCodec.VERSION) {
+                throw new IOException("Server does not speak binary protocol version " + BinaryCodec.VERSION);
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Server does not speak the binary protocol");
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    // Requests sent and not yet answered
+    int inFlight() {
+        return pending.size();
+    }
+
+    // Send a request without waiting for the response. The future fails with a TimeoutException
+    // if there is no response within timeoutMs, and with an IOException if the connection ends first.
+    CompletableFuture<String> send(String jsonRequest, long timeoutMs) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        String id;
+        String request = null;
+        int frameId = 0;
+        if (binary) {
+            frameId = (int) nextId.incrementAndGet();
+            if (frameId == 0) {
+                frameId = (int) nextId.incrementAndGet();   // 0 means no id
+            }
+            id = Integer.toUnsignedString(frameId);
+        } else {
+            request = jsonRequest.trim();
+            if (!request.startsWith("{") || !request.endsWith("}")) {
+                future.completeExceptionally(new IllegalArgumentException("Request is not a JSON object"));
+                return future;
+            }
+            id = Long.toString(nextId.incrementAndGet());
+            // The id goes last, so it wins over any id the request already had
+            String fields = request.substring(0, request.length() - 1).trim();
+            request = fields + (fields.equals("{") ? "" : ",") + "\"id\":\"" + id + "\"}";
+        }
+        pending.put(id, future);
+        if (closed) {
+            if (pending.remove(id) != null) {
+                future.completeExceptionally(new IOException("Server disconnected."));
+            }
+            return future;
+        }
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (pending.remove(id, future)) {
+                future.completeExceptionally(new TimeoutException("No response from the server within " + timeoutMs + " ms"));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, error) -> timeout.cancel(false));
+        if (binary) {
+            writeFrame(BinaryCodec.encodeRequest(jsonRequest, frameId));
+        } else {
+            writer.println(request);
+        }
+        return future;
+    }
+
+    // Whole frames at a time, since requests may be sent from several threads
+    private void writeFrame(byte[] frame) {
+        synchronized (output) {
+            try {
+                output.write(frame);
+                output.flush();
+            } catch (IOException e) {
+                // The receiver sees the broken connection and fails what is waiting
+            }
+        }
+    }
+
+    // Route each response to the future waiting for its id
+    private void receive() {
+        try {
+            if (binary) {
+                while (true) {
+                    int length;
+                    try {
+                        length = input.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < 6) {
+                        throw new IOException("Malformed response frame");
+                    }
+                    byte[] frame = new byte[length];
+                    input.readFully(frame);
+                    String invalidated = BinaryCodec.invalidatedWord(frame);
+                    if (invalidated != null) {
+                        onInvalidate.accept(invalidated);
+                    } else {
+                        deliver(BinaryCodec.responseId(frame), BinaryCodec.decodeResponse(frame, gson));
+                    }
+                }
+            } else {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    received(line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Treated the same as the server closing the connection
+        } finally {
+            closed = true;
+            try { socket.close(); } catch (IOException e) { }
+            IOException cause = new IOException("Server disconnected.");
+            for (String id : pending.keySet()) {
+                CompletableFuture<String> future = pending.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(cause);
+                }
+            }
+            onClose.accept(this);
+        }
+    }
+
+    // Responses without an id, or with one nobody waits for any more (timed out), are dropped
+    private void deliver(String id, String line) {
+        CompletableFuture<String> future = id == null ? null : pending.remove(id);
+        if (future != null) {
+            future.complete(line);
+        }
+    }
+
+    // A response, or a pushed change, which has a type where a response has an id. The server
+    // writes either one first, so only the start of the line is read.
+    private void received(String line) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(line));
+            reader.beginObject();
+            String type = null;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("id")) {
+                    if (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER) {
+                        deliver(reader.nextString(), line);
+                    }
+                    return;
+                } else if (name.equals("type") && reader.peek() == JsonToken.STRING) {
+                    type = reader.nextString();
+                } else if (name.equals("word") && "invalidate".equals(type) && reader.peek() == JsonToken.STRING) {
+                    onInvalidate.accept(reader.nextString());
+                    return;
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Not something this connection waits for
+        }
+    }
+
+    // Closing the socket wakes the receiver, which fails whatever is still waiting
+    void close() {
+        closed = true;
+        try { socket.close(); } catch (IOException e) { }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+
+package client.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+// Consistent hashing of words onto the shards of a sharded dictionary. Each shard, named by its
+// "host:port", is put at POINTS_PER_NODE places on a ring of 64-bit hashes, and a word belongs to
+// the shard at the first place at or after the word's own hash. Adding a shard only takes the
+// parts of the ring just before its places, so only the words there move, and removing one only
+// moves its own words. The ring depends on the names alone, so every client and the rebalancer
+// must name the shards the same way.
+public final class HashRing {
+    public static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    private final long[] points;   // sorted
+    private final int[] owners;    // index into nodes of the shard at each point
+
+    // A part of the ring, the hashes in (start, end], that moves between shards
+    public static final class Move {
+        public final String from;
+        public final String to;
+        public final long start;
+        public final long end;
+
+        Move(String from, String to, long start, long end) {
+            this.from = from;
+            this.to = to;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        long[][] placed = new long[nodes.size() * POINTS_PER_NODE][];
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                placed[n * POINTS_PER_NODE + i] = new long[] { hash(nodes.get(n) + "#" + i), n };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    // Index in nodes() of the shard the word belongs to
+    public int owner(String word) {
+        return ownerOf(hash(word));
+    }
+
+    // The parts of the ring whose shard differs in the next ring, with their shard in each
+    public List<Move> changesTo(HashRing next) {
+        TreeSet<Long> all = new TreeSet<>();
+        for (long point : points) {
+            all.add(point);
+        }
+        for (long point : next.points) {
+            all.add(point);
+        }
+        // No place of either ring falls inside a part between neighbouring places, so the whole
+        // part has the shards its end has
+        List<Move> moves = new ArrayList<>();
+        long previous = all.last();
+        for (long point : all) {
+            String from = nodes.get(ownerOf(point));
+            String to = next.nodes.get(next.ownerOf(point));
+            if (!from.equals(to)) {
+                moves.add(new Move(from, to, previous, point));
+            }
+            previous = point;
+        }
+        return moves;
+    }
+
+    private int ownerOf(long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // Must give the same value as server.ShardHash.hash: 64-bit FNV-1a of the UTF-8 bytes, then
+    // MurmurHash3's finaliser
+    public static long hash(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -7,15 +7,23 @@
 package client.ui;
 
 import javax.swing.*;
-import java.io.IOException;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.util.ArrayList;
 import java.util.List;
 import java.awt.*;
 import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import client.net.DictionaryClientCore;
 import com.google.gson.Gson;
 
 public class DictionaryClientGUI extends JFrame {
+    // Number of words suggested while typing
+    private static final int SUGGESTION_COUNT = 8;
+
     // GUI components created by the GUI Designer
     private JPanel rootPanel;
     private JTextField txtWord;
@@ -30,6 +38,11 @@ public class DictionaryClientGUI extends JFrame {
     private DictionaryClientCore clientCore;
     private Gson gson;
 
+    // Words starting with what has been typed in txtWord
+    private final JPopupMenu suggestionPopup = new JPopupMenu();
+    private int suggestionRequest;  // latest prefix request; answers to older ones are dropped
+    private boolean fillingWord;    // txtWord is being set from a chosen suggestion
+
     // Request and Response message classes for JSON communication
     class RequestMessage {
         String type;
@@ -38,12 +51,15 @@ public class DictionaryClientGUI extends JFrame {
         String meaning;        // for "addmeaning"
         String oldMeaning;     // for "update"
         String newMeaning;     // for "update"
+        List<RequestMessage> items; // for batches such as "maddmeaning"
+        Integer limit;         // for "prefix"
     }
 
     class ResponseMessage {
         String status;  // "success" or "error"
         String message;
         List<String> data;
+        List<ResponseMessage> results; // per-item responses of a batch
     }
 
     public DictionaryClientGUI(DictionaryClientCore clientCore) {
@@ -65,6 +81,23 @@ public class DictionaryClientGUI extends JFrame {
         btnUpdate.addActionListener(e -> updateWord());
         btnAddMeaning.addActionListener(e -> addMeaning());
 
+        suggestionPopup.setFocusable(false);
+        txtWord.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                requestSuggestions();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                requestSuggestions();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
         txtWord.setBorder(BorderFactory.createEmptyBorder());
         txtMeanings.setBorder(BorderFactory.createEmptyBorder());
 
@@ -87,6 +120,48 @@ public class DictionaryClientGUI extends JFrame {
         btnUpdate.setBackground(new Color(219,205,240));
     }
 
+    // Ask the server for words starting with what has been typed so far. The request carries an
+    // id, so typing never waits for the answer.
+    private void requestSuggestions() {
+        int request = ++suggestionRequest;
+        String prefix = txtWord.getText().trim();
+        if (fillingWord || prefix.isEmpty()) {
+            suggestionPopup.setVisible(false);
+            return;
+        }
+        RequestMessage req = new RequestMessage();
+        req.type = "prefix";
+        req.word = prefix;
+        req.limit = SUGGESTION_COUNT;
+        // A suggestion that fails to arrive is simply not shown
+        clientCore.send(gson.toJson(req)).thenAccept(response ->
+                SwingUtilities.invokeLater(() -> showSuggestions(request, prefix, response)));
+    }
+
+    private void showSuggestions(int request, String prefix, String response) {
+        if (request != suggestionRequest || !txtWord.isShowing()) {
+            return;
+        }
+        ResponseMessage res = gson.fromJson(response, ResponseMessage.class);
+        suggestionPopup.setVisible(false);
+        suggestionPopup.removeAll();
+        if (res.data == null || res.data.isEmpty() || (res.data.size() == 1 && res.data.get(0).equals(prefix))) {
+            return;
+        }
+        for (String word : res.data) {
+            JMenuItem item = new JMenuItem(word);
+            item.addActionListener(e -> {
+                fillingWord = true;
+                txtWord.setText(word);
+                fillingWord = false;
+                suggestionPopup.setVisible(false);
+            });
+            suggestionPopup.add(item);
+        }
+        suggestionPopup.show(txtWord, 0, txtWord.getHeight());
+        txtWord.requestFocusInWindow();
+    }
+
     // Query word from the server
     private void queryWord() {
         String word = txtWord.getText().trim();
@@ -94,26 +169,15 @@ public class DictionaryClientGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "Please enter a word.");
             return;
         }
-        RequestMessage req = new RequestMessage();
-        req.type = "query";
-        req.word = word;
-        String jsonReq = gson.toJson(req);
-        clientCore.sendRequest(jsonReq);
-        try {
-            String response = clientCore.readResponse();
-            if (response == null) {
-                txtOutput.setText("Server disconnected.");
-                return;
-            }
+        clearInputs();
+        // Answered from the client's cache when it has the word
+        handle(clientCore.query(word), response -> {
             ResponseMessage res = gson.fromJson(response, ResponseMessage.class);
             txtOutput.setText(res.message);
             if (res.data != null && !res.data.isEmpty()) {
                 txtOutput.append("\nResult: " + String.join(", ", res.data));
             }
-        } catch (IOException ex) {
-            txtOutput.setText("Error reading response: " + ex.getMessage());
-        }
-        clearInputs();
+        });
     }
 
     // Add a new word to the dictionary
@@ -140,42 +204,21 @@ public class DictionaryClientGUI extends JFrame {
         if (uniqueMeanings.size() < inputMeanings.size()) {
             JOptionPane.showMessageDialog(this, "Duplicate meanings detected; duplicates will be ignored.");
         }
-        // Check if word exists before adding
-        RequestMessage queryReq = new RequestMessage();
-        queryReq.type = "query";
-        queryReq.word = word;
-        String jsonQuery = gson.toJson(queryReq);
-        clientCore.sendRequest(jsonQuery);
-        try {
-            String queryResponseStr = clientCore.readResponse();
-            if (queryResponseStr == null) {
-                txtOutput.setText("Server disconnected.");
-                return;
-            }
-            ResponseMessage queryRes = gson.fromJson(queryResponseStr, ResponseMessage.class);
-            txtOutput.setText(""); // Clear previous output
-            if ("error".equals(queryRes.status)) {
-                // Word does not exist, so add it
-                RequestMessage addReq = new RequestMessage();
-                addReq.type = "add";
-                addReq.word = word;
-                addReq.meanings = uniqueMeanings;
-                String jsonAdd = gson.toJson(addReq);
-                clientCore.sendRequest(jsonAdd);
-                String addResponse = clientCore.readResponse();
-                if (addResponse == null) {
-                    txtOutput.setText("Server disconnected.");
-                    return;
-                }
-                ResponseMessage addRes = gson.fromJson(addResponse, ResponseMessage.class);
-                txtOutput.setText(addRes.message);
-            } else {
+        // The server refuses to add a word that already exists, so no separate check is needed
+        RequestMessage addReq = new RequestMessage();
+        addReq.type = "add";
+        addReq.word = word;
+        addReq.meanings = uniqueMeanings;
+        String jsonAdd = gson.toJson(addReq);
+        clearInputs();
+        send(jsonAdd, addResponse -> {
+            ResponseMessage addRes = gson.fromJson(addResponse, ResponseMessage.class);
+            if ("Word already exists.".equals(addRes.message)) {
                 txtOutput.setText("Word already exists. Use 'Add Meaning' to append new meanings.");
+            } else {
+                txtOutput.setText(addRes.message);
             }
-        } catch (IOException ex) {
-            txtOutput.setText("Error communicating with server: " + ex.getMessage());
-        }
-        clearInputs();
+        });
     }
 
     // Remove a word from the dictionary
@@ -189,19 +232,11 @@ public class DictionaryClientGUI extends JFrame {
         req.type = "remove";
         req.word = word;
         String jsonReq = gson.toJson(req);
-        clientCore.sendRequest(jsonReq);
-        try {
-            String response = clientCore.readResponse();
-            if (response == null) {
-                txtOutput.setText("Server disconnected.");
-                return;
-            }
+        clearInputs();
+        send(jsonReq, response -> {
             ResponseMessage res = gson.fromJson(response, ResponseMessage.class);
             txtOutput.setText(res.message);
-        } catch (IOException ex) {
-            txtOutput.setText("Error reading response: " + ex.getMessage());
-        }
-        clearInputs();
+        });
     }
 
     // Update an existing meaning of a word
@@ -220,19 +255,11 @@ public class DictionaryClientGUI extends JFrame {
         req.oldMeaning = parts[0].trim();
         req.newMeaning = parts[1].trim();  // May contain multiple meanings separated by "~"
         String jsonReq = gson.toJson(req);
-        clientCore.sendRequest(jsonReq);
-        try {
-            String response = clientCore.readResponse();
-            if (response == null) {
-                txtOutput.setText("Server disconnected.");
-                return;
-            }
+        clearInputs();
+        send(jsonReq, response -> {
             ResponseMessage res = gson.fromJson(response, ResponseMessage.class);
             txtOutput.setText(res.message);
-        } catch (IOException ex) {
-            txtOutput.setText("Error reading response: " + ex.getMessage());
-        }
-        clearInputs();
+        });
     }
 
     // Add additional meaning(s) to an existing word
@@ -259,45 +286,50 @@ public class DictionaryClientGUI extends JFrame {
         if (uniqueMeanings.size() < inputMeanings.size()) {
             JOptionPane.showMessageDialog(this, "Duplicate meanings detected; duplicates will be ignored.");
         }
-        // Check if the word exists first
-        RequestMessage queryReq = new RequestMessage();
-        queryReq.type = "query";
-        queryReq.word = word;
-        String jsonQuery = gson.toJson(queryReq);
-        clientCore.sendRequest(jsonQuery);
-        try {
-            String queryResponseStr = clientCore.readResponse();
-            if (queryResponseStr == null) {
-                txtOutput.setText("Server disconnected.");
-                return;
-            }
-            ResponseMessage queryRes = gson.fromJson(queryResponseStr, ResponseMessage.class);
+        // Send all meanings in one batch; each item fails with "Word not found." if the word is missing
+        RequestMessage batchReq = new RequestMessage();
+        batchReq.type = "maddmeaning";
+        batchReq.items = new ArrayList<>();
+        for (String m : uniqueMeanings) {
+            RequestMessage item = new RequestMessage();
+            item.word = word;
+            item.meaning = m;
+            batchReq.items.add(item);
+        }
+        clearInputs();
+        send(gson.toJson(batchReq), batchResponse -> {
+            ResponseMessage batchRes = gson.fromJson(batchResponse, ResponseMessage.class);
             txtOutput.setText(""); // Clear previous output
-            if ("error".equals(queryRes.status)) {
+            if (batchRes.results == null) {
+                txtOutput.setText(batchRes.message);
+            } else if ("Word not found.".equals(batchRes.results.get(0).message)) {
                 txtOutput.setText("Word not found. Please add the word first.");
             } else {
-                // Add each new meaning
-                for (String m : uniqueMeanings) {
-                    RequestMessage addMeaningReq = new RequestMessage();
-                    addMeaningReq.type = "addmeaning";
-                    addMeaningReq.word = word;
-                    addMeaningReq.meaning = m;
-                    String jsonAddMeaning = gson.toJson(addMeaningReq);
-                    clientCore.sendRequest(jsonAddMeaning);
-                    String addMeaningResponse = clientCore.readResponse();
-                    if (addMeaningResponse == null) {
-                        txtOutput.setText("Server disconnected.");
-                        return;
-                    }
-                    ResponseMessage addMeaningRes = gson.fromJson(addMeaningResponse, ResponseMessage.class);
-                    txtOutput.append(addMeaningRes.status + "\n");
-                    txtOutput.append(addMeaningRes.message + m + "\n");
+                for (ResponseMessage itemRes : batchRes.results) {
+                    txtOutput.append(itemRes.status + "\n");
+                    txtOutput.append(itemRes.message + "\n");
                 }
             }
-        } catch (IOException ex) {
-            txtOutput.setText("Error communicating with server: " + ex.getMessage());
-        }
-        clearInputs();
+        });
+    }
+
+    // Send a request and handle its response on the event dispatch thread when it arrives, so the
+    // window stays responsive however long the server takes
+    private void send(String jsonRequest, Consumer<String> onResponse) {
+        handle(clientCore.send(jsonRequest), onResponse);
+    }
+
+    private void handle(CompletableFuture<String> pending, Consumer<String> onResponse) {
+        pending.whenComplete((response, error) -> SwingUtilities.invokeLater(() -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                onResponse.accept(response);
+            } else if (cause instanceof TimeoutException) {
+                txtOutput.setText("The server did not answer in time.");
+            } else {
+                txtOutput.setText("Error communicating with server: " + cause.getMessage());
+            }
+        }));
     }
 
     // Clear text fields
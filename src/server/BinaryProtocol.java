@@ -0,0 +1,326 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Compact binary form of the protocol, for clients on slow links. A client asks for it by sending
+// MAGIC and the version it speaks as the first two bytes of the connection (a JSON request cannot
+// start with MAGIC); the server answers with MAGIC and VERSION, and from then on both sides send
+// frames instead of lines.
+//
+// Every frame starts with its length in 4 bytes, big-endian, not counting the length itself.
+//   request:  opcode (1 byte), id (4 bytes), then the opcode's fields
+//   response: opcode of the request, status (1 byte), id (4 bytes), message, data
+// Id 0 means the request has none and is answered in order; any other id is echoed in the
+// response, and such requests may be answered out of order, as with "id" in JSON.
+// Strings are their UTF-8 length plus one as a varint, then the bytes; lists are their size plus
+// one, then the strings. Zero stands for null in both. A successful response leaves out the
+// message when it is the usual one for the opcode, so a query answer is little more than its
+// meanings. Requests that have no opcode of their own (batches, stats) are sent as a JSON frame
+// holding the request line, and answered with the response line.
+final class BinaryProtocol {
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte VERSION = 1;
+    static final byte[] HANDSHAKE = { MAGIC, VERSION };
+
+    // Opcodes and the fields that follow the id
+    static final int QUERY = 1;        // word
+    static final int ADD = 2;          // word, meanings
+    static final int REMOVE = 3;       // word
+    static final int UPDATE = 4;       // word, oldMeaning, newMeaning
+    static final int ADDMEANING = 5;   // word, meaning
+    static final int PREFIX = 6;       // prefix, limit + 1 as a varint (0 for the default)
+    static final int SEARCH = 7;       // text, mode, limit + 1 as a varint
+    static final int INVALIDATE = 8;   // only pushed to subscribers: a response with id 0 whose data is the changed word
+    static final int JSON = 16;        // the rest of the frame is a JSON request line
+
+    // Response statuses
+    static final int OK = 0;           // data as for JSON; message only if it is not the usual one
+    static final int NOT_FOUND = 1;    // "Word not found."; data holds the similar word, if any
+    static final int EXISTS = 2;       // "Word already exists."
+    static final int ERROR = 3;        // message says what went wrong
+    static final int JSON_RESPONSE = 4; // the rest of the frame is a JSON response line
+
+    private static final String[] TYPES = new String[JSON + 1];
+    private static final String[] USUAL_MESSAGES = new String[JSON + 1];
+    private static final String NOT_FOUND_MESSAGE = "Word not found.";
+    private static final String SIMILAR_WORD = NOT_FOUND_MESSAGE + "\nSimilar word found: ";
+    private static final String EXISTS_MESSAGE = "Word already exists.";
+
+    static {
+        TYPES[QUERY] = "query";
+        TYPES[ADD] = "add";
+        TYPES[REMOVE] = "remove";
+        TYPES[UPDATE] = "update";
+        TYPES[ADDMEANING] = "addmeaning";
+        TYPES[PREFIX] = "prefix";
+        TYPES[SEARCH] = "search";
+        USUAL_MESSAGES[QUERY] = "Query successful.";
+        USUAL_MESSAGES[ADD] = "Word added successfully.";
+        USUAL_MESSAGES[REMOVE] = "Word removed successfully.";
+        USUAL_MESSAGES[PREFIX] = "Prefix search successful.";
+        USUAL_MESSAGES[SEARCH] = "Search successful.";
+    }
+
+    private BinaryProtocol() {
+    }
+
+    // The request in a frame, without its length, or null if the frame is malformed. A JSON frame
+    // gives a request holding only its opcode, id and line.
+    static DictionaryServer.RequestMessage decodeRequest(byte[] bytes, int offset, int length) {
+        if (length < 5) {
+            return null;
+        }
+        Reader in = new Reader(bytes, offset, offset + length);
+        DictionaryServer.RequestMessage req = new DictionaryServer.RequestMessage();
+        req.opcode = in.u8();
+        int id = in.u32();
+        req.id = id == 0 ? null : Integer.toUnsignedString(id);
+        if (req.opcode == JSON) {
+            req.json = Arrays.copyOfRange(bytes, in.position, in.end);
+            return req;
+        }
+        if (req.opcode >= TYPES.length || TYPES[req.opcode] == null) {
+            return null;
+        }
+        req.type = TYPES[req.opcode];
+        try {
+            switch (req.opcode) {
+                case ADD:
+                    req.word = in.string();
+                    req.meanings = in.strings();
+                    break;
+                case UPDATE:
+                    req.word = in.string();
+                    req.oldMeaning = in.string();
+                    req.newMeaning = in.string();
+                    break;
+                case ADDMEANING:
+                    req.word = in.string();
+                    req.meaning = in.string();
+                    break;
+                case PREFIX:
+                    req.word = in.string();
+                    req.limit = in.optionalInt();
+                    break;
+                case SEARCH:
+                    req.meaning = in.string();
+                    req.mode = in.string();
+                    req.limit = in.optionalInt();
+                    break;
+                default:
+                    req.word = in.string();
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;                    // a length runs past the end of the frame
+        }
+        return in.position == in.end ? req : null;
+    }
+
+    // The response frame, with its length, for a request that came in a frame with the given
+    // opcode and id
+    static byte[] encodeResponse(int opcode, String id, DictionaryServer.ResponseMessage res) {
+        Writer out = new Writer();
+        out.header(opcode, status(res), id);
+        String message = res.message;
+        List<String> data = res.data;
+        switch (status(res)) {
+            case OK:
+                if (opcode < USUAL_MESSAGES.length && message != null && message.equals(USUAL_MESSAGES[opcode])) {
+                    message = null;
+                }
+                break;
+            case NOT_FOUND:
+                data = message.startsWith(SIMILAR_WORD) ? Collections.singletonList(message.substring(SIMILAR_WORD.length())) : null;
+                message = null;
+                break;
+            case EXISTS:
+                message = null;
+                break;
+            default:
+                break;
+        }
+        out.string(message);
+        out.strings(data);
+        return out.frame();
+    }
+
+    // A JSON response line, without its terminator, in a frame
+    static byte[] encodeJson(String id, byte[] line) {
+        Writer out = new Writer();
+        out.header(JSON, JSON_RESPONSE, id);
+        out.bytes(line, 0, line.length - 1);
+        return out.frame();
+    }
+
+    // The frame, with its length, pushed to subscribers when a word changes
+    static byte[] encodeInvalidation(String word) {
+        Writer out = new Writer();
+        out.header(INVALIDATE, OK, null);
+        out.string(null);
+        out.strings(Collections.singletonList(word));
+        return out.frame();
+    }
+
+    private static int status(DictionaryServer.ResponseMessage res) {
+        if ("success".equals(res.status)) {
+            return OK;
+        }
+        if (res.message == null) {
+            return ERROR;
+        }
+        if (res.message.equals(NOT_FOUND_MESSAGE) || res.message.startsWith(SIMILAR_WORD)) {
+            return NOT_FOUND;
+        }
+        return res.message.equals(EXISTS_MESSAGE) ? EXISTS : ERROR;
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        int u8() {
+            return bytes[position++] & 0xff;
+        }
+
+        int u32() {
+            return u8() << 24 | u8() << 16 | u8() << 8 | u8();
+        }
+
+        // At most five bytes, seven bits each, lowest first
+        int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                checkAvailable(1);
+                int b = u8();
+                value |= (b & 0x7f) << shift;
+                if (b < 0x80 && value >= 0) {
+                    return value;
+                }
+            }
+            throw new ArrayIndexOutOfBoundsException("varint out of range");
+        }
+
+        String string() {
+            int length = varint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            checkAvailable(length);
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        List<String> strings() {
+            int size = varint() - 1;
+            if (size < 0) {
+                return null;
+            }
+            // Every string takes at least a byte, so the size cannot ask for more than the frame holds
+            checkAvailable(size);
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(string());
+            }
+            return list;
+        }
+
+        Integer optionalInt() {
+            int value = varint();
+            return value == 0 ? null : value - 1;
+        }
+
+        private void checkAvailable(int n) {
+            if (n > end - position) {
+                throw new ArrayIndexOutOfBoundsException("past the end of the frame");
+            }
+        }
+    }
+
+    private static class Writer {
+        private byte[] bytes = new byte[256];
+        private int size = 4;               // room for the length
+
+        void header(int opcode, int status, String id) {
+            u8(opcode);
+            u8(status);
+            int value = id == null ? 0 : Integer.parseUnsignedInt(id);
+            u8(value >>> 24);
+            u8(value >>> 16);
+            u8(value >>> 8);
+            u8(value);
+        }
+
+        void u8(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                u8((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            u8(value);
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length + 1);
+            bytes(utf8, 0, utf8.length);
+        }
+
+        void strings(List<String> list) {
+            if (list == null) {
+                varint(0);
+                return;
+            }
+            varint(list.size() + 1);
+            for (String s : list) {
+                string(s);
+            }
+        }
+
+        void bytes(byte[] b, int offset, int length) {
+            ensure(length);
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        byte[] frame() {
+            int length = size - 4;
+            bytes[0] = (byte) (length >>> 24);
+            bytes[1] = (byte) (length >>> 16);
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// Binary dictionary snapshot. The file is memory-mapped and its records are decoded straight
+// into the store in parallel, found through the offsets table, so loading costs one checksum
+// pass and no line parsing. Layout, big-endian:
+//
+//   magic "DSNP"  version (int)  entry count (int)
+//   offsets table: one long per entry, the file position of its record
+//   records, sorted by the UTF-8 bytes of the word:
+//     word length (int)  word bytes  meaning count (int)  { meaning length (int)  meaning bytes }...
+//   CRC32 of everything before it (int)
+//
+// Strings are UTF-8. Snapshots are limited to 2 GB, the most a single mapping can hold.
+class BinarySnapshot {
+    private static final byte[] MAGIC = { 'D', 'S', 'N', 'P' };
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+
+    private BinarySnapshot(MappedByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    // Whether the file has a snapshot header: the magic, a known version, and an entry count
+    // whose offsets table fits in the file. A text dictionary whose first headword happens to
+    // start with the magic fails the other checks.
+    static boolean isSnapshot(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        int version;
+        int count;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+            version = in.readInt();
+            count = in.readInt();
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC) && version == VERSION && count >= 0
+                && HEADER_BYTES + 8L * count + 4 <= file.length();
+    }
+
+    // Map a snapshot and check its header and checksum
+    static BinarySnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is larger than 2 GB");
+            }
+            if (size < HEADER_BYTES + 4) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a dictionary snapshot");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            int count = buffer.getInt(8);
+            int crcPosition = (int) size - 4;
+            if (count < 0 || HEADER_BYTES + 8L * count > crcPosition) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, crcPosition));
+            if ((int) crc.getValue() != buffer.getInt(crcPosition)) {
+                throw new IOException("Snapshot " + file + " is corrupt (checksum mismatch)");
+            }
+            return new BinarySnapshot(buffer, count);
+        }
+    }
+
+    // Write the dictionary as a snapshot, replacing the target file atomically
+    static void write(File target, DictionaryStore dictionary) throws IOException {
+        // Encode the entries first, then sort by word bytes. Each entry becomes
+        // { word, meaning1, meaning2, ... }.
+        List<byte[][]> entries = new ArrayList<>(dictionary.size());
+        dictionary.forEach((word, meanings) -> {
+            byte[][] encoded = new byte[meanings.size() + 1][];
+            encoded[0] = word.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < meanings.size(); i++) {
+                encoded[i + 1] = meanings.get(i).getBytes(StandardCharsets.UTF_8);
+            }
+            entries.add(encoded);
+        });
+        entries.sort((a, b) -> Arrays.compareUnsigned(a[0], b[0]));
+
+        DictionaryLoader.writeAtomically(target, out -> {
+            CRC32 crc = new CRC32();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    crc.update(b);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    crc.update(b, off, len);
+                    out.write(b, off, len);
+                }
+            }, 64 * 1024));
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(entries.size());
+            long position = HEADER_BYTES + 8L * entries.size();
+            for (byte[][] entry : entries) {
+                data.writeLong(position);
+                // Length prefixes of every string plus the meaning count
+                position += 4L * (entry.length + 1);
+                for (byte[] bytes : entry) {
+                    position += bytes.length;
+                }
+            }
+            if (position + 4 > Integer.MAX_VALUE) {
+                throw new IOException("Dictionary is too large for a snapshot");
+            }
+            for (byte[][] entry : entries) {
+                data.writeInt(entry[0].length);
+                data.write(entry[0]);
+                data.writeInt(entry.length - 1);
+                for (int i = 1; i < entry.length; i++) {
+                    data.writeInt(entry[i].length);
+                    data.write(entry[i]);
+                }
+            }
+            data.flush();
+            // The checksum goes straight to the file so it does not checksum itself
+            int value = (int) crc.getValue();
+            out.write(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+        });
+    }
+
+    // Decode every entry into the map, in parallel
+    void copyTo(DictionaryStore dictionary) {
+        IntStream.range(0, count).parallel().forEach(i -> dictionary.put(word(i), meanings(i)));
+    }
+
+    private String word(int index) {
+        int position = recordPosition(index);
+        return string(position + 4, buffer.getInt(position));
+    }
+
+    private List<String> meanings(int index) {
+        int position = recordPosition(index);
+        position += 4 + buffer.getInt(position);
+        int n = buffer.getInt(position);
+        position += 4;
+        List<String> meanings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int length = buffer.getInt(position);
+            meanings.add(string(position + 4, length));
+            position += 4 + length;
+        }
+        return meanings;
+    }
+
+    private int recordPosition(int index) {
+        return (int) buffer.getLong(HEADER_BYTES + 8 * index);
+    }
+
+    private String string(int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Convert between the text format and snapshots:
+    //   java -cp DictionaryServer.jar server.BinarySnapshot import <text-file> <snapshot-file>
+    //   java -cp DictionaryServer.jar server.BinarySnapshot export <snapshot-file> <text-file>
+    public static void main(String[] args) {
+        if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: java -cp DictionaryServer.jar server.BinarySnapshot import <text-file> <snapshot-file>");
+            System.out.println("       java -cp DictionaryServer.jar server.BinarySnapshot export <snapshot-file> <text-file>");
+            return;
+        }
+        File source = new File(args[1]);
+        File target = new File(args[2]).getAbsoluteFile();
+        DictionaryStore dictionary = new HeapDictionaryStore();
+        try {
+            DictionaryLoader.load(source, dictionary);
+            if (args[0].equals("import")) {
+                write(target, dictionary);
+            } else {
+                DictionaryLoader.writeText(target, dictionary);
+            }
+            System.out.println("Wrote " + dictionary.size() + " entries to " + target);
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One blocking handler per connection, run on platform threads or on virtual threads.
+// The number of connections and of requests processed at once are both capped. Requests that
+// carry an id are handed to their own task and answered as they complete; the rest are answered
+// in order by the connection's handler. A connection that opens with the binary protocol's
+// handshake sends frames instead of lines. Changes pushed to a subscribed connection are queued
+// and written by a task of their own, so the writer that made the change never waits on the socket.
+class BlockingConnectionEngine implements ConnectionEngine {
+    private final ExecutorService executor;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Semaphore inFlight = new Semaphore(ServerConfig.MAX_IN_FLIGHT);
+
+    private BlockingConnectionEngine(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    static BlockingConnectionEngine platformThreads() {
+        return new BlockingConnectionEngine(Executors.newCachedThreadPool());
+    }
+
+    // Virtual threads need Java 21; look the factory up at runtime so the server still builds on older JDKs
+    static BlockingConnectionEngine virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new BlockingConnectionEngine((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using platform threads.");
+            return platformThreads();
+        }
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            Log.info("Dictionary server started on port " + port);
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                if (connections.incrementAndGet() > ServerConfig.MAX_CONNECTIONS) {
+                    connections.decrementAndGet();
+                    rejectBusy(clientSocket);
+                    continue;
+                }
+                if (Log.INFO && Log.CONNECTIONS.allow()) {
+                    Log.info("Client connected: " + clientSocket.getInetAddress());
+                }
+                try {
+                    executor.execute(new ClientHandler(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    connections.decrementAndGet();
+                    rejectBusy(clientSocket);
+                }
+            }
+        }
+    }
+
+    private void rejectBusy(Socket socket) {
+        try (Socket s = socket) {
+            s.getOutputStream().write((BUSY_RESPONSE + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The client is being turned away anyway
+        }
+    }
+
+    // Handle each client connection
+    class ClientHandler implements Runnable {
+        private static final int LINE_TOO_LONG = -2;
+
+        private Socket socket;
+        private boolean binary;
+        private final Semaphore pipelined = new Semaphore(ServerConfig.MAX_PIPELINED_PER_CONNECTION);
+        // Bytes read from the socket but not yet split into lines, and the line being read
+        private final byte[] input = new byte[8192];
+        private int inputPosition;
+        private int inputEnd;
+        private byte[] line = new byte[256];
+        // Pushed changes not yet written, and whether a task is writing them
+        private final ArrayBlockingQueue<byte[]> pushes = new ArrayBlockingQueue<>(ChangeFeed.MAX_QUEUED_PUSHES);
+        private final AtomicBoolean pushing = new AtomicBoolean();
+        private volatile OutputStream out;
+        private final ChangeFeed.Subscriber subscriber = this::push;
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            Metrics.connected();
+            try (
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream()
+            ) {
+                this.out = out;
+                binary = handshake(in, out);
+                int length;
+                while ((length = binary ? readFrame(in) : readLine(in)) >= 0) {
+                    // Parsed before the next request is read over it
+                    DictionaryServer.RequestMessage req = binary
+                            ? DictionaryServer.parseFrame(line, 0, length)
+                            : DictionaryServer.parseRequest(line, 0, length);
+                    if (req != null) {
+                        req.subscriber = subscriber;
+                    }
+                    // Blocking here pushes back on the client through TCP flow control
+                    inFlight.acquireUninterruptibly();
+                    if (req != null && req.id != null) {
+                        pipelined.acquireUninterruptibly();
+                        executor.execute(() -> {
+                            try {
+                                respond(out, handle(req));
+                            } finally {
+                                pipelined.release();
+                                inFlight.release();
+                            }
+                        });
+                    } else {
+                        try {
+                            respond(out, handle(req));
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }
+                if (length == LINE_TOO_LONG) {
+                    DictionaryServer.ResponseMessage res = DictionaryServer.errorResponse("Request too large.");
+                    respond(out, binary
+                            ? BinaryProtocol.encodeResponse(0, null, res)
+                            : (DictionaryServer.toJson(res) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                // Let pipelined requests finish before the socket is closed
+                pipelined.acquireUninterruptibly(ServerConfig.MAX_PIPELINED_PER_CONNECTION);
+            } catch (SocketException e) {
+                if (Log.INFO && Log.CONNECTIONS.allow()) {
+                    Log.info("Client disconnected: " + e.getMessage());
+                }
+            } catch (IOException e) {
+                Log.error("Connection failed", e);
+            } finally {
+                DictionaryServer.unsubscribe(subscriber);
+                connections.decrementAndGet();
+                Metrics.disconnected();
+                try { socket.close(); } catch (IOException e) { }
+            }
+        }
+
+        private byte[] handle(DictionaryServer.RequestMessage req) {
+            return binary ? DictionaryServer.handleFrame(req) : DictionaryServer.handleRequest(req);
+        }
+
+        // Answer the binary protocol's handshake if the connection starts with it
+        private boolean handshake(InputStream in, OutputStream out) throws IOException {
+            if (!fill(in) || input[inputPosition] != BinaryProtocol.MAGIC) {
+                return false;
+            }
+            inputPosition++;
+            if (fill(in)) {
+                inputPosition++;            // the client's version; it checks ours in the reply
+                respond(out, BinaryProtocol.HANDSHAKE);
+            }
+            return true;
+        }
+
+        // Read the next frame into `line`, without its length. Returns its length, -1 at the end of
+        // the stream, or LINE_TOO_LONG if the frame is longer than the request size limit.
+        private int readFrame(InputStream in) throws IOException {
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                if (!fill(in)) {
+                    return -1;
+                }
+                length = length << 8 | (input[inputPosition++] & 0xff);
+            }
+            if (length < 0 || length > ServerConfig.MAX_LINE_BYTES) {
+                return LINE_TOO_LONG;
+            }
+            if (length > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length));
+            }
+            int read = 0;
+            while (read < length) {
+                if (!fill(in)) {
+                    return -1;
+                }
+                int chunk = Math.min(length - read, inputEnd - inputPosition);
+                System.arraycopy(input, inputPosition, line, read, chunk);
+                inputPosition += chunk;
+                read += chunk;
+            }
+            return length;
+        }
+
+        // Make sure there is unread input, reading more if needed; false at the end of the stream
+        private boolean fill(InputStream in) throws IOException {
+            if (inputPosition < inputEnd) {
+                return true;
+            }
+            int n = in.read(input);
+            if (n < 0) {
+                return false;
+            }
+            Metrics.bytesIn(n);
+            inputPosition = 0;
+            inputEnd = n;
+            return true;
+        }
+
+        // Read the next line into `line`, without its terminator. Returns its length, -1 at the end of
+        // the stream, or LINE_TOO_LONG once a line goes past the request size limit.
+        private int readLine(InputStream in) throws IOException {
+            int length = 0;
+            while (true) {
+                if (inputPosition == inputEnd) {
+                    int n = in.read(input);
+                    if (n < 0) {
+                        return length > 0 ? length : -1;
+                    }
+                    Metrics.bytesIn(n);
+                    inputPosition = 0;
+                    inputEnd = n;
+                }
+                int start = inputPosition;
+                while (inputPosition < inputEnd && input[inputPosition] != '\n') {
+                    inputPosition++;
+                }
+                int chunk = inputPosition - start;
+                if (length + chunk > ServerConfig.MAX_LINE_BYTES) {
+                    return LINE_TOO_LONG;
+                }
+                if (length + chunk > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+                }
+                System.arraycopy(input, start, line, length, chunk);
+                length += chunk;
+                if (inputPosition < inputEnd) {
+                    inputPosition++;
+                    return length;
+                }
+            }
+        }
+
+        // A subscriber that lets MAX_QUEUED_PUSHES build up is disconnected rather than sent more;
+        // skipping the push instead would leave its client with a stale answer
+        private void push(byte[] line, byte[] frame) {
+            if (!pushes.offer(binary ? frame : line)) {
+                Log.warn("Client disconnected: too far behind on pushed changes");
+                try { socket.close(); } catch (IOException e) { }
+                return;
+            }
+            if (pushing.compareAndSet(false, true)) {
+                executor.execute(this::writePushes);
+            }
+        }
+
+        private void writePushes() {
+            do {
+                byte[] push;
+                while ((push = pushes.poll()) != null) {
+                    respond(out, push);
+                }
+                pushing.set(false);
+                // A push queued after the last poll but before the flag was cleared is written too
+            } while (!pushes.isEmpty() && pushing.compareAndSet(false, true));
+        }
+
+        // Responses of pipelined requests are written from their own tasks, one whole line at a time
+        private void respond(OutputStream out, byte[] response) {
+            synchronized (out) {
+                try {
+                    out.write(response);
+                    out.flush();
+                    Metrics.bytesOut(response.length);
+                } catch (IOException e) {
+                    // The handler's read sees the broken connection and closes it
+                }
+            }
+        }
+    }
+}
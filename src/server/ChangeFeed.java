@@ -0,0 +1,54 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Connections that sent a "subscribe" request. Every change to a word is pushed to them as an
+// invalidation of that word, so clients can keep query answers and drop them when the word changes.
+// Publishing runs under the word's lock and never waits for a subscriber: each engine queues the
+// push on the connection, and disconnects a subscriber that falls too far behind rather than skip
+// a push. Its client then drops everything it cached, as it does whenever a subscription ends.
+class ChangeFeed {
+    // Pushes a blocking connection may have queued before it is disconnected
+    static final int MAX_QUEUED_PUSHES = 4096;
+
+    interface Subscriber {
+        // Queue a push, given both as a JSON line and as a binary frame; the connection sends the
+        // one for its protocol
+        void push(byte[] line, byte[] frame);
+    }
+
+    // A concurrent set rather than a copy-on-write one: every connection unsubscribes when it
+    // closes, and copying the set each time is quadratic when many subscribe at once
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    int size() {
+        return subscribers.size();
+    }
+
+    // Called after every change to the word. The push goes to every subscriber, not only those
+    // that cached the word, so a change costs a queued push per subscriber under the word's lock.
+    void publish(String word) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        byte[] line = ProtocolCodec.encodeInvalidation(word);
+        byte[] frame = BinaryProtocol.encodeInvalidation(word);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.push(line, frame);
+        }
+    }
+}
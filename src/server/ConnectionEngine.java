@@ -0,0 +1,31 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.IOException;
+
+// Accepts client connections, splits what they send into lines (or binary frames) and passes
+// each one to DictionaryServer.parseRequest and handleRequest (parseFrame and handleFrame)
+interface ConnectionEngine {
+    // Sent to clients that connect while the server is at its connection limit
+    String BUSY_RESPONSE = DictionaryServer.toJson(DictionaryServer.errorResponse("Server busy. Try again later."));
+
+    // Listen on the port and serve clients until the process exits
+    void serve(int port) throws IOException;
+
+    static ConnectionEngine create(String mode) {
+        switch (mode.toLowerCase()) {
+            case "nio":
+                return new NioConnectionEngine(ServerConfig.WORKERS);
+            case "virtual":
+                return BlockingConnectionEngine.virtualThreads();
+            case "thread":
+                return BlockingConnectionEngine.platformThreads();
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + mode);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Reads and writes dictionary files. A text dictionary (word: meaning1~meaning2~...) is loaded by
+// memory-mapping the file, cutting it into newline-aligned chunks and parsing the chunks in
+// parallel. Lines are scanned as UTF-8 bytes for ':' and '~' directly, and the parsed entries go
+// straight into the concurrent map. The result matches reading the file line by line: when a word
+// appears more than once, its last line wins. Binary snapshots are recognised by their header and
+// handed to BinarySnapshot.
+class DictionaryLoader {
+    // Format the server saves the dictionary in
+    enum Format {
+        TEXT,
+        BINARY
+    }
+
+    // Writes the whole content of a file
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 256 << 20;
+
+    // Parsed entries of one chunk, in file order
+    private static class Chunk {
+        final long start;
+        final long end;
+        final List<String> words = new ArrayList<>();
+        final List<List<String>> meanings = new ArrayList<>();
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Load the file into the map and return the number of bytes read
+    static long load(File file, DictionaryStore dictionary) throws IOException {
+        if (BinarySnapshot.isSnapshot(file)) {
+            BinarySnapshot.open(file).copyTo(dictionary);
+            return file.length();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            List<Chunk> chunks = split(channel, size, parallelism);
+            Set<String> duplicates = ConcurrentHashMap.newKeySet();
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Chunk chunk : chunks) {
+                    futures.add(pool.submit(() -> {
+                        parse(channel, chunk);
+                        for (int i = 0; i < chunk.words.size(); i++) {
+                            if (!dictionary.putIfAbsent(chunk.words.get(i), chunk.meanings.get(i))) {
+                                duplicates.add(chunk.words.get(i));
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading dictionary", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            // Chunks raced each other for repeated words; replay those in file order so the last line wins
+            if (!duplicates.isEmpty()) {
+                for (Chunk chunk : chunks) {
+                    for (int i = 0; i < chunk.words.size(); i++) {
+                        if (duplicates.contains(chunk.words.get(i))) {
+                            dictionary.put(chunk.words.get(i), chunk.meanings.get(i));
+                        }
+                    }
+                }
+            }
+            return size;
+        }
+    }
+
+    // Write the dictionary in the text format, replacing the target file atomically
+    static void writeText(File target, DictionaryStore dictionary) throws IOException {
+        writeAtomically(target, out -> {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            try {
+                dictionary.forEach((word, meanings) -> {
+                    try {
+                        writer.write(word + ": " + String.join("~", meanings));
+                        writer.newLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        });
+    }
+
+    // The content goes to a temporary file that then replaces the target, so a crash part way
+    // through leaves the previous file intact
+    static void writeAtomically(File target, Content content) throws IOException {
+        target = target.getAbsoluteFile();
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            content.writeTo(out);
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Cut the file into chunks that each end just after a newline (or at the end of the file)
+    private static List<Chunk> split(FileChannel channel, long size, int parallelism) throws IOException {
+        long target = Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, size / (parallelism * 4L)));
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + target);
+            // Move the boundary forward to just past the next newline
+            while (end < size) {
+                probe.clear();
+                int n = channel.read(probe, end);
+                if (n <= 0) {
+                    end = size;
+                    break;
+                }
+                int newline = -1;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += n;
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line too long near offset " + start);
+            }
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static void parse(FileChannel channel, Chunk chunk) throws IOException {
+        int length = (int) (chunk.end - chunk.start);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, length);
+        byte[] scratch = new byte[256];
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            parseLine(buffer, lineStart, lineEnd, chunk, scratch);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    // Same result as trimming the line, splitting it once on ':' and then on "~"
+    private static void parseLine(ByteBuffer buffer, int from, int to, Chunk chunk, byte[] scratch) {
+        int colon = -1;
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon < 0) {
+            return;
+        }
+        String word = decodeTrimmed(buffer, from, colon, scratch);
+        // String.split drops trailing empty pieces, but an empty string still splits into one piece
+        int meaningsFrom = skipBlank(buffer, colon + 1, to);
+        int meaningsTo = trimEnd(buffer, meaningsFrom, to);
+        List<String> meanings = new ArrayList<>();
+        if (meaningsFrom == meaningsTo) {
+            meanings.add("");
+        } else {
+            int pieceStart = meaningsFrom;
+            int keep = 0;
+            for (int i = meaningsFrom; i <= meaningsTo; i++) {
+                if (i == meaningsTo || buffer.get(i) == '~') {
+                    meanings.add(decodeTrimmed(buffer, pieceStart, i, scratch));
+                    if (i > pieceStart) {
+                        keep = meanings.size();
+                    }
+                    pieceStart = i + 1;
+                }
+            }
+            meanings.subList(keep, meanings.size()).clear();
+        }
+        chunk.words.add(word);
+        chunk.meanings.add(meanings);
+    }
+
+    private static String decodeTrimmed(ByteBuffer buffer, int from, int to, byte[] scratch) {
+        from = skipBlank(buffer, from, to);
+        to = trimEnd(buffer, from, to);
+        int length = to - from;
+        if (length > scratch.length) {
+            scratch = new byte[length];
+        }
+        buffer.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // String.trim removes every character up to and including ' '; UTF-8 multi-byte sequences never contain such bytes
+    private static int skipBlank(ByteBuffer buffer, int from, int to) {
+        while (from < to && (buffer.get(from) & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int from, int to) {
+        while (to > from && (buffer.get(to - 1) & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+}
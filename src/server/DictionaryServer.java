@@ -6,16 +6,54 @@
 package server;
 
 import java.io.*;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DictionaryServer {
-    // Synchronized map to ensure thread safety
-    private static Map<String, List<String>> dictionary = new ConcurrentHashMap<>();
-    private static Gson gson = new Gson();
+    // Dictionary entries, in the storage engine chosen by dictionary.store
+    private static DictionaryStore dictionary = DictionaryStore.create(ServerConfig.STORE);
+    // Index of headwords for similar-word suggestions on a query miss
+    private static SuggestionIndex suggestionIndex = new SuggestionIndex();
+    // Index of the words used in meanings, for search requests
+    private static MeaningIndex meaningIndex = new MeaningIndex();
+    // Encoded responses of successful queries for the most requested words
+    private static ResponseCache responseCache = new ResponseCache(ServerConfig.CACHE_MAX_BYTES);
+    // Suggestions for recently queried missing words, and a filter of the headwords that answers
+    // most misses without a store lookup; the filter is null until the server starts
+    private static MissCache missCache = new MissCache(ServerConfig.MISS_CACHE_ENTRIES);
+    private static KeyFilter keyFilter;
+    // Connections told about every change, so their clients can cache query answers
+    private static ChangeFeed changeFeed = new ChangeFeed();
+    // Streams changes to replicas when this server is a primary
+    private static ReplicationSource replicationSource;
+    // Set when this server is a read-only replica
+    private static Replica replica;
+    // Log of changes since the last snapshot; null until the server starts
+    private static WriteAheadLog writeAheadLog;
+    private static Snapshotter snapshotter;
+    // Changes to a word are made under its lock, one of WORD_LOCKS picked by the word's hash. A
+    // change updates the store first, then logs itself and updates the indexes and caches, all
+    // before the lock is released, so changes to one word are applied everywhere in the same order.
+    // Reads take no lock.
+    private static final int WORD_LOCKS = 1024;
+    private static final ReentrantLock[] wordLocks = new ReentrantLock[WORD_LOCKS];
+    static {
+        for (int i = 0; i < WORD_LOCKS; i++) {
+            wordLocks[i] = new ReentrantLock();
+        }
+    }
+    // Durability of the change made by the request running on this thread; a batch collects its
+    // items' commits itself
+    private static final ThreadLocal<CompletableFuture<Void>> pendingCommit = new ThreadLocal<>();
+    // Words returned by a prefix request that does not ask for a number, and the most it may ask for
+    private static final int DEFAULT_PREFIX_LIMIT = 10;
+    private static final int MAX_PREFIX_LIMIT = 100;
+    // The same for search requests
+    private static final int DEFAULT_SEARCH_LIMIT = 10;
+    private static final int MAX_SEARCH_LIMIT = 100;
 
     public static void main(String[] args) {
         if (args.length != 2) {
@@ -25,278 +63,719 @@ public class DictionaryServer {
 
         int port = Integer.parseInt(args[0]);
         String dictFile = args[1];
-        loadDictionary(dictFile);
+        if (ServerConfig.REPLICA_OF != null) {
+            // A replica keeps nothing on disk; it copies the primary's dictionary whenever it connects
+            buildIndexes();
+            replica = new Replica(ServerConfig.REPLICA_OF, ServerConfig.REPLICA_MAX_LAG_MS);
+            replica.start();
+            Log.info("Read-only replica of " + ServerConfig.REPLICA_OF);
+        } else if (!openDictionary(dictFile)) {
+            return;
+        }
+
+        if (ServerConfig.METRICS_PORT > 0) {
+            try {
+                MetricsEndpoint.start(ServerConfig.METRICS_PORT);
+            } catch (IOException e) {
+                Log.error("Cannot serve metrics: " + e.getMessage());
+            }
+        }
+
+        try {
+            ConnectionEngine engine = ConnectionEngine.create(ServerConfig.ENGINE);
+            engine.serve(port);
+        } catch (IOException e) {
+            Log.error("Server stopped", e);
+        }
+    }
+
+    // Load the dictionary and its logged changes, and start saving changes. Returns false if the
+    // server cannot start.
+    private static boolean openDictionary(String fileName) {
+        if (!loadDictionary(fileName)) {
+            return false;
+        }
+        // Changes made after the dictionary file was last written
+        int replayed = Snapshotter.replay(fileName, record -> {
+            if ("remove".equals(record.op)) {
+                dictionary.remove(record.word);
+            } else if (record.meanings != null) {
+                dictionary.put(record.word, record.meanings);
+            }
+        });
+        if (replayed > 0) {
+            Log.info("Replayed " + replayed + " logged changes, dictionary has " + dictionary.size() + " entries.");
+        }
+        buildIndexes();
+        Log.info(String.format("Dictionary store: %s, about %.1f MB.", ServerConfig.STORE, dictionary.footprintBytes() / 1e6));
+
+        try {
+            writeAheadLog = new WriteAheadLog(fileName, ServerConfig.WAL_FSYNC, ServerConfig.WAL_FSYNC_INTERVAL_MS);
+        } catch (IOException e) {
+            Log.error("Cannot open change log: " + e.getMessage());
+            return false;
+        }
+        snapshotter = new Snapshotter(fileName, dictionary, writeAheadLog);
+        if (replayed > 0) {
+            snapshotter.full();
+        }
+        ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        background.scheduleWithFixedDelay(() -> {
+            if (writeAheadLog.changedSinceRotate()) {
+                snapshotter.snapshot();
+            }
+        }, ServerConfig.SNAPSHOT_INTERVAL_MS, ServerConfig.SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         // Save dictionary on shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutting down server, saving dictionary...");
-            writeDictionary(dictFile);
+            Log.info("Shutting down server, saving dictionary...");
+            snapshotter.full();
+            Log.flush();
         }));
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Dictionary server started on port " + port);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                new Thread(new ClientHandler(clientSocket)).start();
+        if (ServerConfig.REPLICATION_PORT > 0) {
+            replicationSource = new ReplicationSource(dictionary);
+            try {
+                replicationSource.start(ServerConfig.REPLICATION_PORT);
+            } catch (IOException e) {
+                Log.error("Cannot serve replicas: " + e.getMessage());
+                return false;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return true;
     }
 
-    // Load dictionary data from a file (format: word: meaning1~meaning2~...)
-    private static void loadDictionary(String fileName) {
+    // Build the indexes over the loaded entries; requests can be processed once they are built
+    static void buildIndexes() {
+        suggestionIndex.rebuild(dictionary.keys());
+        meaningIndex.rebuild(dictionary);
+        keyFilter = new KeyFilter(dictionary.keys());
+    }
+
+    // Serve requests from another set of entries, with empty caches; used by the benchmarks to
+    // run the request path over dictionaries of different sizes in one process
+    static void useDictionary(DictionaryStore store) {
+        dictionary = store;
+        responseCache = new ResponseCache(ServerConfig.CACHE_MAX_BYTES);
+        missCache = new MissCache(ServerConfig.MISS_CACHE_ENTRIES);
+        buildIndexes();
+    }
+
+    // Load dictionary data from a text file (format: word: meaning1~meaning2~...) or a binary
+    // snapshot. Returns false if the file exists but cannot be read, so that it is not overwritten.
+    private static boolean loadDictionary(String fileName) {
         File file = new File(fileName);
         if (!file.exists() || !file.isFile()) {
-            System.err.println("Dictionary file " + fileName + " does not exist. Starting with an empty dictionary.");
+            Log.warn("Dictionary file " + fileName + " does not exist. Starting with an empty dictionary.");
+            return true;
+        }
+        try {
+            long start = System.nanoTime();
+            long bytes = DictionaryLoader.load(file, dictionary);
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            Log.info(String.format("Loaded dictionary with %d entries (%.1f MB in %.0f ms, %.0f MB/s).",
+                    dictionary.size(), bytes / 1e6, seconds * 1e3, bytes / 1e6 / seconds));
+            return true;
+        } catch (IOException e) {
+            Log.error("Error loading dictionary: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static Lock wordLock(String word) {
+        int h = word.hashCode();
+        return wordLocks[(h ^ (h >>> 16)) & (WORD_LOCKS - 1)];
+    }
+
+    // Log a change made by the current request. The request's response is held back until the
+    // change is as durable as the fsync policy asks for. The change is already live and
+    // replicated by then, so a failed write cannot undo it; see unsaved.
+    private static void journal(String op, String word, List<String> meanings) {
+        if (replicationSource != null) {
+            replicationSource.publish(op, word, meanings);
+        }
+        if (writeAheadLog == null) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty() || !line.contains(":"))
-                    continue;
-                try {
-                    String[] parts = line.split(":", 2);
-                    String word = parts[0].trim();
-                    String meaningsStr = parts[1].trim();
-                    String[] meanings = meaningsStr.split("~");
-                    List<String> meaningList = new ArrayList<>();
-                    for (String meaning : meanings) {
-                        meaningList.add(meaning.trim());
-                    }
-                    dictionary.put(word, meaningList);
-                } catch (Exception e) {
-                    System.err.println("Error parsing line: " + line + " - " + e.getMessage());
+        CompletableFuture<Void> commit = writeAheadLog.append(op, word, meanings == null ? null : new ArrayList<>(meanings));
+        if (commit != null) {
+            pendingCommit.set(commit);
+        }
+    }
+
+    // Make the word's entry what a replication record says; null meanings remove it. Keeps the
+    // indexes and caches as processRequest does, and pushes the change to subscribers.
+    static void applyReplicated(String word, List<String> meanings) {
+        Lock lock = wordLock(word);
+        lock.lock();
+        try {
+            List<String> current = dictionary.get(word);
+            if (meanings == null) {
+                if (current == null || !dictionary.remove(word)) {
+                    return;
                 }
+                keyFilter.remove(word);
+                suggestionIndex.remove(word);
+                meaningIndex.remove(word);
+            } else if (current == null) {
+                keyFilter.add(word);
+                dictionary.put(word, meanings);
+                suggestionIndex.add(word);
+                missCache.wordAdded();
+                meaningIndex.put(word, meanings);
+            } else if (!current.equals(meanings)) {
+                dictionary.put(word, meanings);
+                meaningIndex.put(word, meanings);
+            } else {
+                return;
             }
-            System.out.println("Loaded dictionary with " + dictionary.size() + " entries.");
-        } catch (IOException e) {
-            System.err.println("Error loading dictionary: " + e.getMessage());
+            responseCache.invalidate(word);
+            changeFeed.publish(word);
+        } finally {
+            lock.unlock();
         }
     }
 
-    // Write dictionary data back to a file
-    private static void writeDictionary(String fileName) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            for (Map.Entry<String, List<String>> entry : dictionary.entrySet()) {
-                String meanings = String.join("~", entry.getValue());
-                writer.write(entry.getKey() + ": " + meanings);
-                writer.newLine();
+    // Remove every word not in the primary's snapshot; returns how many went
+    static int retainReplicated(Set<String> words) {
+        int removed = 0;
+        for (String word : dictionary.keys()) {
+            if (!words.contains(word)) {
+                applyReplicated(word, null);
+                removed++;
             }
-            System.out.println("Dictionary saved successfully.");
-        } catch (IOException e) {
-            System.err.println("Error writing dictionary: " + e.getMessage());
         }
+        return removed;
     }
 
-    // Handle each client connection
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-        }
-
-        @Override
-        public void run() {
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-            ) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    try {
-                        RequestMessage req = gson.fromJson(line, RequestMessage.class);
-                        ResponseMessage res = processRequest(req);
-                        String jsonResponse = gson.toJson(res);
-                        out.println(jsonResponse);
-                    } catch (JsonSyntaxException e) {
-                        ResponseMessage res = new ResponseMessage();
-                        res.status = "error";
-                        res.message = "Invalid JSON format.";
-                        out.println(gson.toJson(res));
-                    }
-                }
-            } catch (SocketException e) {
-                System.out.println("Client disconnected: " + e.getMessage());
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try { socket.close(); } catch (IOException e) { }
-            }
+    // Parse a request line from its UTF-8 bytes; returns null if the line is not a JSON request
+    static RequestMessage parseRequest(byte[] line, int offset, int length) {
+        return ProtocolCodec.decodeRequest(line, offset, length);
+    }
+
+    // Process a parsed request and return the response line in UTF-8, with its line terminator,
+    // echoing the request id if it has one
+    static byte[] handleRequest(RequestMessage req) {
+        if (req != null && responseCache.enabled() && "query".equalsIgnoreCase(req.type) && req.word != null
+                && (replica == null || replica.current())) {
+            return cachedQuery(req);
         }
+        return ProtocolCodec.encodeResponse(respond(req));
+    }
+
+    // Parse a request frame of the binary protocol, without its length; returns null if the frame
+    // is malformed
+    static RequestMessage parseFrame(byte[] frame, int offset, int length) {
+        return BinaryProtocol.decodeRequest(frame, offset, length);
+    }
+
+    // Called by the engines when a connection closes, in case it had subscribed
+    static void unsubscribe(ChangeFeed.Subscriber subscriber) {
+        changeFeed.unsubscribe(subscriber);
+    }
 
-        // Calculate the Levenshtein distance between two strings
-        private int levenshteinDistance(String s1, String s2) {
-            int[][] dp = new int[s1.length() + 1][s2.length() + 1];
-            for (int i = 0; i <= s1.length(); i++) {
-                dp[i][0] = i;
+    // Process a request parsed from a frame and return the response frame. Binary queries skip
+    // the response cache, which holds JSON; encoding their answer is cheap anyway.
+    static byte[] handleFrame(RequestMessage req) {
+        if (req == null) {
+            badRequest("Malformed request frame.");
+            return BinaryProtocol.encodeResponse(0, null, errorResponse("Invalid request."));
+        }
+        if (req.opcode == BinaryProtocol.JSON) {
+            // The frame carries the id, so one in the line is not echoed
+            RequestMessage line = parseRequest(req.json, 0, req.json.length);
+            if (line != null) {
+                line.id = null;
+                line.subscriber = req.subscriber;
             }
-            for (int j = 0; j <= s2.length(); j++) {
-                dp[0][j] = j;
+            return BinaryProtocol.encodeJson(req.id, handleRequest(line));
+        }
+        return BinaryProtocol.encodeResponse(req.opcode, req.id, respond(req));
+    }
+
+    // Process a parsed request, waiting for its changes to be saved, and return the response
+    // with the request's id. The time taken is recorded against the request's type.
+    private static ResponseMessage respond(RequestMessage req) {
+        long start = System.nanoTime();
+        ResponseMessage res;
+        if (req == null) {
+            badRequest("Request is not valid JSON.");
+            res = errorResponse("Invalid JSON format.");
+        } else if (req.type == null) {
+            res = errorResponse("Invalid request. Type required.");
+        } else {
+            try {
+                res = processRequest(req);
+            } catch (RuntimeException e) {
+                Log.error("Error processing " + req.type + " request", e);
+                res = errorResponse("Internal server error.");
             }
-            for (int i = 1; i <= s1.length(); i++) {
-                for (int j = 1; j <= s2.length(); j++) {
-                    int cost = (s1.charAt(i - 1) == s2.charAt(j - 1)) ? 0 : 1;
-                    dp[i][j] = Math.min(Math.min(dp[i - 1][j] + 1, dp[i][j - 1] + 1), dp[i - 1][j - 1] + cost);
+            CompletableFuture<Void> commit = pendingCommit.get();
+            if (commit != null) {
+                pendingCommit.remove();
+                try {
+                    commit.join();
+                } catch (CompletionException e) {
+                    res = unsaved(e.getCause());
                 }
             }
-            return dp[s1.length()][s2.length()];
         }
+        if (req != null) {
+            res.id = req.id;
+            if (req.type != null) {
+                Metrics.request(req.type, "error".equals(res.status), System.nanoTime() - start);
+            }
+        }
+        return res;
+    }
 
-        // Process the client request and return the response
-        private ResponseMessage processRequest(RequestMessage req) {
-            ResponseMessage res = new ResponseMessage();
-            String type = req.type.toLowerCase();
-            if ("query".equals(type)) {
-                if (req.word == null || req.word.trim().isEmpty()) {
-                    res.status = "error";
-                    res.message = "Word not provided.";
-                } else {
-                    List<String> meanings = dictionary.get(req.word);
-                    if (meanings == null) {
-                        // No exact match found, search for similar word
-                        String similarWord = null;
-                        int bestDistance = Integer.MAX_VALUE;
-                        int maxAllowedDistance = 2;
-                        for (String key : dictionary.keySet()) {
-                            int distance = levenshteinDistance(req.word, key);
-                            if (distance <= maxAllowedDistance && distance < bestDistance) {
-                                similarWord = key;
-                                bestDistance = distance;
-                            }
-                        }
-                        if (similarWord != null) {
-                            res.status = "error";
-                            res.message = "Word not found.\nSimilar word found: " + similarWord;
-                        } else {
-                            res.status = "error";
-                            res.message = "Word not found.";
-                        }
+    // The answer to a change whose log write failed. It was applied before it was logged, so
+    // readers and replicas already see it, but it is lost if the server restarts.
+    private static ResponseMessage unsaved(Throwable cause) {
+        return errorResponse("Change was applied but could not be saved, so it may be lost on a restart: "
+                + cause.getMessage());
+    }
+
+    // Answer a query from the response cache, filling the cache on a successful miss. Cached
+    // bodies are responses without an id, minus the opening brace, so an id can be put in front.
+    private static byte[] cachedQuery(RequestMessage req) {
+        long start = System.nanoTime();
+        boolean error = false;
+        byte[] body = responseCache.get(req.word);
+        if (body == null) {
+            long stamp = responseCache.stamp(req.word);
+            ResponseMessage res;
+            try {
+                res = processRequest(req);
+            } catch (RuntimeException e) {
+                Log.error("Error processing " + req.type + " request", e);
+                res = errorResponse("Internal server error.");
+            }
+            body = ProtocolCodec.encodeBody(res);
+            if ("success".equals(res.status)) {
+                responseCache.put(req.word, stamp, body);
+            } else {
+                error = true;
+            }
+        }
+        byte[] line = ProtocolCodec.withId(req.id, body);
+        Metrics.request("query", error, System.nanoTime() - start);
+        return line;
+    }
+
+    private static void badRequest(String reason) {
+        Metrics.parseError();
+        if (Log.WARN && Log.BAD_REQUESTS.allow()) {
+            Log.warn(reason);
+        }
+    }
+
+    static ResponseMessage errorResponse(String message) {
+        ResponseMessage res = new ResponseMessage();
+        res.status = "error";
+        res.message = message;
+        return res;
+    }
+
+    // The response as JSON text, without a line terminator
+    static String toJson(ResponseMessage res) {
+        byte[] line = ProtocolCodec.encodeResponse(res);
+        return new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+    }
+
+    // The closest word within two edits of a word that is not in the dictionary, or null if there
+    // is none. Served from the miss cache when the same word missed recently.
+    private static String similarWord(String word) {
+        if (!missCache.enabled()) {
+            return closestWord(word);
+        }
+        MissCache.Entry cached = missCache.get(word, dictionary::containsKey);
+        if (cached != null) {
+            return cached.suggestion;
+        }
+        long generation = missCache.generation();
+        String similar = closestWord(word);
+        missCache.put(word, generation, similar);
+        return similar;
+    }
+
+    private static String closestWord(String word) {
+        int maxAllowedDistance = 2;
+        long start = System.nanoTime();
+        String closest = suggestionIndex.closest(word, maxAllowedDistance);
+        Metrics.fuzzyScan(System.nanoTime() - start);
+        return closest;
+    }
+
+    // Process the client request and return the response
+    static ResponseMessage processRequest(RequestMessage req) {
+        ResponseMessage res = new ResponseMessage();
+        String type = req.type.toLowerCase();
+        if (replica != null && isChange(type)) {
+            res.status = "error";
+            res.message = "This server is a read-only replica. Send changes to the primary.";
+        } else if (writeAheadLog != null && isChange(type) && !writeAheadLog.writable()) {
+            res.status = "error";
+            res.message = "Changes cannot be saved right now. Try again later.";
+        } else if (replica != null && isRead(type) && !replica.current()) {
+            res.status = "error";
+            res.message = "Replica is behind the primary.";
+        } else if ("query".equals(type)) {
+            if (req.word == null || req.word.trim().isEmpty()) {
+                res.status = "error";
+                res.message = "Word not provided.";
+            } else {
+                List<String> meanings = keyFilter.mightContain(req.word) ? dictionary.get(req.word) : null;
+                if (meanings == null) {
+                    // No exact match found, search for similar word
+                    String similarWord = similarWord(req.word);
+                    if (similarWord != null) {
+                        res.status = "error";
+                        res.message = "Word not found.\nSimilar word found: " + similarWord;
                     } else {
-                        res.status = "success";
-                        res.message = "Query successful.";
-                        res.data = meanings;
+                        res.status = "error";
+                        res.message = "Word not found.";
                     }
-                }
-            } else if ("add".equals(type)) {
-                if (req.word == null || req.meanings == null || req.meanings.isEmpty()) {
-                    res.status = "error";
-                    res.message = "Invalid add request. Word and meanings required.";
-                } else if (dictionary.containsKey(req.word)) {
-                    res.status = "error";
-                    res.message = "Word already exists.";
                 } else {
-                    dictionary.put(req.word, new ArrayList<>(req.meanings));
                     res.status = "success";
-                    res.message = "Word added successfully.";
+                    res.message = "Query successful.";
+                    res.data = meanings;
                 }
-            } else if ("remove".equals(type)) {
-                if (req.word == null) {
-                    res.status = "error";
-                    res.message = "Word not provided.";
-                } else if (dictionary.remove(req.word) != null) {
-                    res.status = "success";
-                    res.message = "Word removed successfully.";
-                } else {
-                    res.status = "error";
-                    res.message = "Word not found.";
+            }
+        } else if ("add".equals(type)) {
+            if (req.word == null || req.meanings == null || req.meanings.isEmpty()) {
+                res.status = "error";
+                res.message = "Invalid add request. Word and meanings required.";
+            } else {
+                Lock lock = wordLock(req.word);
+                lock.lock();
+                try {
+                    // Counted in the filter before it can be found in the store, so the filter never misses it
+                    keyFilter.add(req.word);
+                    if (!dictionary.putIfAbsent(req.word, req.meanings)) {
+                        keyFilter.remove(req.word);
+                        res.status = "error";
+                        res.message = "Word already exists.";
+                    } else {
+                        journal("add", req.word, req.meanings);
+                        responseCache.invalidate(req.word);
+                        changeFeed.publish(req.word);
+                        suggestionIndex.add(req.word);
+                        missCache.wordAdded();
+                        meaningIndex.put(req.word, req.meanings);
+                        res.status = "success";
+                        res.message = "Word added successfully.";
+                    }
+                } finally {
+                    lock.unlock();
                 }
-            } else if ("update".equals(type)) {
-                if (req.word == null || req.oldMeaning == null || req.newMeaning == null) {
-                    res.status = "error";
-                    res.message = "Invalid update request. Word, oldMeaning, and newMeaning required.";
-                } else {
+            }
+        } else if ("remove".equals(type)) {
+            if (req.word == null) {
+                res.status = "error";
+                res.message = "Word not provided.";
+            } else {
+                Lock lock = wordLock(req.word);
+                lock.lock();
+                try {
+                    List<String> current = req.meanings == null ? null : dictionary.get(req.word);
+                    if (current != null && !current.equals(req.meanings)) {
+                        res.status = "error";
+                        res.message = "Word has changed.";
+                    } else if (dictionary.remove(req.word)) {
+                        journal("remove", req.word, null);
+                        responseCache.invalidate(req.word);
+                        changeFeed.publish(req.word);
+                        keyFilter.remove(req.word);
+                        suggestionIndex.remove(req.word);
+                        meaningIndex.remove(req.word);
+                        res.status = "success";
+                        res.message = "Word removed successfully.";
+                    } else {
+                        res.status = "error";
+                        res.message = "Word not found.";
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else if ("update".equals(type)) {
+            if (req.word == null || req.oldMeaning == null || req.newMeaning == null) {
+                res.status = "error";
+                res.message = "Invalid update request. Word, oldMeaning, and newMeaning required.";
+            } else {
+                Lock lock = wordLock(req.word);
+                lock.lock();
+                try {
                     List<String> meanings = dictionary.get(req.word);
                     if (meanings == null) {
                         res.status = "error";
                         res.message = "Word not found.";
+                    } else if (!meanings.contains(req.oldMeaning)) {
+                        res.status = "error";
+                        res.message = "Old meaning not found.";
                     } else {
-                        synchronized (meanings) {
-                            if (!meanings.contains(req.oldMeaning)) {
-                                res.status = "error";
-                                res.message = "Old meaning not found.";
-                            } else {
-                                String[] newMeaningsArray = req.newMeaning.split("~");
-                                List<String> newMeaningsList = new ArrayList<>();
-                                for (String nm : newMeaningsArray) {
-                                    nm = nm.trim();
-                                    if (!nm.isEmpty()) {
-                                        newMeaningsList.add(nm);
-                                    }
-                                }
-                                List<String> uniqueMeanings = new ArrayList<>(new LinkedHashSet<>(newMeaningsList));
-
-                                meanings.remove(req.oldMeaning);
-
-                                boolean anyAdded = false;
-                                List<String> addedMeaningsList = new ArrayList<>();
-                                for (String nm : uniqueMeanings) {
-                                    if (!meanings.contains(nm)) {
-                                        meanings.add(nm);
-                                        anyAdded = true;
-                                        addedMeaningsList.add(nm);
-                                    }
-                                }
-
-                                if (anyAdded) {
-                                    res.status = "success";
-                                    res.message = "Old meaning replaced.\nNew meanings added: " + String.join("; ", addedMeaningsList);
-                                } else {
-                                    meanings.add(req.oldMeaning);
-                                    res.status = "error";
-                                    res.message = "No new meaning was added because all provided new meanings already exist.";
-                                }
+                        List<String> updated = new ArrayList<>(meanings);
+                        updated.remove(req.oldMeaning);
+                        // Looked up in a set, so long meaning lists do not make this quadratic
+                        Set<String> present = new HashSet<>(updated);
+                        List<String> addedMeaningsList = new ArrayList<>();
+                        for (String nm : req.newMeaning.split("~")) {
+                            nm = nm.trim();
+                            if (!nm.isEmpty() && present.add(nm)) {
+                                updated.add(nm);
+                                addedMeaningsList.add(nm);
                             }
                         }
+                        if (addedMeaningsList.isEmpty()) {
+                            // The change is dropped, so the old meaning stays where it was
+                            res.status = "error";
+                            res.message = "No new meaning was added because all provided new meanings already exist.";
+                        } else {
+                            dictionary.put(req.word, updated);
+                            journal("update", req.word, updated);
+                            meaningIndex.put(req.word, updated);
+                            responseCache.invalidate(req.word);
+                            changeFeed.publish(req.word);
+                            res.status = "success";
+                            res.message = "Old meaning replaced.\nNew meanings added: " + String.join("; ", addedMeaningsList);
+                        }
                     }
+                } finally {
+                    lock.unlock();
                 }
-            } else if ("addmeaning".equals(type)) {
-                if (req.word == null || req.meaning == null) {
-                    res.status = "error";
-                    res.message = "Invalid addMeaning request. Word and meaning required.";
-                } else {
+            }
+        } else if ("addmeaning".equals(type)) {
+            if (req.word == null || req.meaning == null) {
+                res.status = "error";
+                res.message = "Invalid addMeaning request. Word and meaning required.";
+            } else {
+                Lock lock = wordLock(req.word);
+                lock.lock();
+                try {
                     List<String> meanings = dictionary.get(req.word);
                     if (meanings == null) {
                         res.status = "error";
                         res.message = "Word not found.";
+                    } else if (meanings.contains(req.meaning)) {
+                        res.status = "error";
+                        res.message = "Meaning already exists: " + req.meaning;
                     } else {
-                        synchronized (meanings) {
-                            if (meanings.contains(req.meaning)) {
-                                res.status = "error";
-                                res.message = "Meaning already exists: " + req.meaning;
-                            } else {
-                                meanings.add(req.meaning);
-                                res.status = "success";
-                                res.message = "Meaning added successfully: " + req.meaning;
-                            }
-                        }
+                        List<String> updated = new ArrayList<>(meanings.size() + 1);
+                        updated.addAll(meanings);
+                        updated.add(req.meaning);
+                        dictionary.put(req.word, updated);
+                        journal("addmeaning", req.word, updated);
+                        meaningIndex.put(req.word, updated);
+                        responseCache.invalidate(req.word);
+                        changeFeed.publish(req.word);
+                        res.status = "success";
+                        res.message = "Meaning added successfully: " + req.meaning;
                     }
+                } finally {
+                    lock.unlock();
                 }
+            }
+        } else if ("stats".equals(type)) {
+            res.status = "success";
+            res.message = "Server statistics.";
+            res.stats = componentStats();
+            Metrics.addStats(res.stats);
+        } else if ("subscribe".equals(type)) {
+            if (req.subscriber == null) {
+                res.status = "error";
+                res.message = "Subscriptions need a connection.";
+            } else {
+                changeFeed.subscribe(req.subscriber);
+                res.status = "success";
+                res.message = "Subscribed to changes.";
+            }
+        } else if ("prefix".equals(type)) {
+            if (req.word == null) {
+                res.status = "error";
+                res.message = "Prefix not provided.";
             } else {
+                int limit = req.limit == null ? DEFAULT_PREFIX_LIMIT : Math.max(1, Math.min(req.limit, MAX_PREFIX_LIMIT));
+                res.status = "success";
+                res.message = "Prefix search successful.";
+                res.data = suggestionIndex.withPrefix(req.word, limit);
+            }
+        } else if ("search".equals(type)) {
+            if (req.meaning == null || req.meaning.trim().isEmpty()) {
+                res.status = "error";
+                res.message = "Search text not provided.";
+            } else if (req.mode != null && !"and".equalsIgnoreCase(req.mode) && !"or".equalsIgnoreCase(req.mode)) {
                 res.status = "error";
-                res.message = "Unknown command type.";
+                res.message = "Unknown search mode: " + req.mode;
+            } else {
+                int limit = req.limit == null ? DEFAULT_SEARCH_LIMIT : Math.max(1, Math.min(req.limit, MAX_SEARCH_LIMIT));
+                res.status = "success";
+                res.message = "Search successful.";
+                res.data = meaningIndex.search(req.meaning, "and".equalsIgnoreCase(req.mode), limit);
             }
+        } else if ("suggest".equals(type)) {
+            // A sharded client asks every shard and keeps the closest, so the distance comes too
+            if (req.word == null || req.word.trim().isEmpty()) {
+                res.status = "error";
+                res.message = "Word not provided.";
+            } else {
+                String similar = similarWord(req.word);
+                res.status = "success";
+                if (similar == null) {
+                    res.message = "No similar word found.";
+                } else {
+                    res.message = "Similar word found.";
+                    res.data = Arrays.asList(similar, Integer.toString(SuggestionIndex.distance(req.word, similar)));
+                }
+            }
+        } else if ("keys".equals(type)) {
+            long[] bounds = req.ranges == null ? null : parseRanges(req.ranges);
+            if (bounds == null) {
+                res.status = "error";
+                res.message = "Invalid keys request. Ranges required, as \"from:to\".";
+            } else {
+                List<String> words = new ArrayList<>();
+                for (String word : dictionary.keys()) {
+                    long hash = ShardHash.hash(word);
+                    for (int i = 0; i < bounds.length; i += 2) {
+                        if (ShardHash.inRange(hash, bounds[i], bounds[i + 1])) {
+                            words.add(word);
+                            break;
+                        }
+                    }
+                }
+                res.status = "success";
+                res.message = "Keys listed.";
+                res.data = words;
+            }
+        } else if ("mquery".equals(type) || "madd".equals(type) || "maddmeaning".equals(type)) {
+            return processBatch(type.substring(1), req.items);
+        } else {
+            res.status = "error";
+            res.message = "Unknown command type.";
+        }
+        return res;
+    }
+
+    // The ranges of a keys request as from, to pairs, or null if one is malformed
+    private static long[] parseRanges(List<String> ranges) {
+        long[] bounds = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            String range = ranges.get(i);
+            int colon = range == null ? -1 : range.indexOf(':', 1);
+            if (colon < 0) {
+                return null;
+            }
+            try {
+                bounds[2 * i] = Long.parseLong(range.substring(0, colon));
+                bounds[2 * i + 1] = Long.parseLong(range.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return bounds;
+    }
+
+    private static boolean isChange(String type) {
+        return "add".equals(type) || "remove".equals(type) || "update".equals(type) || "addmeaning".equals(type)
+                || "madd".equals(type) || "maddmeaning".equals(type);
+    }
+
+    private static boolean isRead(String type) {
+        return "query".equals(type) || "prefix".equals(type) || "search".equals(type) || "mquery".equals(type)
+                || "suggest".equals(type) || "keys".equals(type);
+    }
+
+    // Statistics kept by the caches and indexes; the metrics endpoint shows them as gauges
+    static Map<String, Long> componentStats() {
+        Map<String, Long> stats = responseCache.stats();
+        missCache.addStats(stats);
+        stats.put("keyFilter.skippedLookups", keyFilter.skipped());
+        stats.put("changeFeed.subscribers", (long) changeFeed.size());
+        stats.put("fuzzy.nodesVisited", suggestionIndex.visited());
+        if (replicationSource != null) {
+            stats.put("replication.replicas", (long) replicationSource.replicas());
+        }
+        if (replica != null) {
+            replica.addStats(stats);
+        }
+        return stats;
+    }
+
+    // Run each item of a batch as a single request of the given type, in order, and collect
+    // the per-item responses into one response
+    private static ResponseMessage processBatch(String itemType, List<RequestMessage> items) {
+        ResponseMessage res = new ResponseMessage();
+        if (items == null || items.isEmpty()) {
+            res.status = "error";
+            res.message = "Invalid batch request. Items required.";
             return res;
         }
+        res.results = new ArrayList<>(items.size());
+        // Each item's change is saved on its own, so each item waits for its own commit
+        List<CompletableFuture<Void>> commits = new ArrayList<>(items.size());
+        for (RequestMessage item : items) {
+            ResponseMessage itemRes;
+            if (item == null) {
+                itemRes = errorResponse("Invalid batch item.");
+            } else {
+                item.type = itemType;
+                itemRes = processRequest(item);
+            }
+            commits.add(pendingCommit.get());
+            pendingCommit.remove();
+            res.results.add(itemRes);
+        }
+        int succeeded = 0;
+        for (int i = 0; i < items.size(); i++) {
+            CompletableFuture<Void> commit = commits.get(i);
+            if (commit != null) {
+                try {
+                    commit.join();
+                } catch (CompletionException e) {
+                    res.results.set(i, unsaved(e.getCause()));
+                }
+            }
+            if ("success".equals(res.results.get(i).status)) {
+                succeeded++;
+            }
+        }
+        res.status = "success";
+        res.message = "Batch processed: " + succeeded + " succeeded, " + (items.size() - succeeded) + " failed.";
+        return res;
     }
 
     // Request message structure
     static class RequestMessage {
-        String type;           // "query", "add", "remove", "update", "addmeaning"
-        String word;
-        List<String> meanings; // For "add"
-        String meaning;        // For "addmeaning"
+        String id;             // Optional, echoed in the response; requests with an id may be answered out of order
+        String type;           // "query", "add", "remove", "update", "addmeaning", "prefix", "search", "stats", "subscribe", "suggest", "keys", or the batches "mquery", "madd", "maddmeaning"
+        String word;           // For "prefix", the prefix
+        List<String> meanings; // For "add"; for "remove", only remove the word if these are still its meanings
+        String meaning;        // For "addmeaning"; for "search", the words to look for in meanings
         String oldMeaning;     // For "update"
         String newMeaning;     // For "update"
+        List<RequestMessage> items; // For batches, one entry per word
+        Integer limit;         // For "prefix" and "search", how many words to return
+        String mode;           // For "search", "or" (default) to match any of the words, "and" to match all
+        List<String> ranges;   // For "keys", ranges of the shard hash ring as "from:to", meaning (from, to]
+        // Only set for requests that came in a binary frame, never from JSON
+        int opcode;            // The frame's opcode
+        byte[] json;           // For a JSON frame, the request line it carries
+        // Set by the engine, never from JSON
+        ChangeFeed.Subscriber subscriber; // Where pushes to the request's connection go, for "subscribe"
     }
 
     // Response message structure
     static class ResponseMessage {
+        String id;      // Id of the request being answered, if it had one
         String status;  // "success" or "error"
         String message; // Response message
-        List<String> data; // Meanings for query result
+        List<String> data; // Meanings for query result; words for prefix and search results
+        List<ResponseMessage> results; // Per-item responses of a batch
+        Map<String, Long> stats; // Counters for a stats request
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+// Storage for the dictionary entries. Implementations are safe for concurrent use. The meaning
+// lists they hand out never change afterwards, so callers can read them without locking; they
+// may be shared and unmodifiable, so a caller that wants to edit one copies it first.
+// Each operation is atomic on its own. A change that reads the meanings and writes them back is
+// only safe while the caller holds the word's lock (see DictionaryServer.processRequest).
+interface DictionaryStore {
+    // The word's meanings, or null if it is not in the dictionary
+    List<String> get(String word);
+
+    boolean containsKey(String word);
+
+    // Add the word unless it is already there; returns false if it was
+    boolean putIfAbsent(String word, List<String> meanings);
+
+    void put(String word, List<String> meanings);
+
+    // Returns false if the word was not there
+    boolean remove(String word);
+
+    int size();
+
+    // Visit every entry. Entries changed during the walk may be seen before or after the change.
+    void forEach(BiConsumer<String, List<String>> action);
+
+    List<String> keys();
+
+    // Estimated memory held by the entries, in bytes
+    long footprintBytes();
+
+    static DictionaryStore create(String kind) {
+        switch (kind.toLowerCase()) {
+            case "heap":
+                return new HeapDictionaryStore();
+            case "packed":
+                return new PackedDictionaryStore();
+            default:
+                throw new IllegalArgumentException("Unknown dictionary store: " + kind);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// The dictionary as a concurrent map of String to meaning list. The lists are unmodifiable and a
+// change swaps in a new one, so reads take no lock and never wait for a writer.
+class HeapDictionaryStore implements DictionaryStore {
+    private final Map<String, List<String>> map = new ConcurrentHashMap<>();
+
+    @Override
+    public List<String> get(String word) {
+        return map.get(word);
+    }
+
+    @Override
+    public boolean containsKey(String word) {
+        return map.containsKey(word);
+    }
+
+    @Override
+    public boolean putIfAbsent(String word, List<String> meanings) {
+        return map.putIfAbsent(word, frozen(meanings)) == null;
+    }
+
+    @Override
+    public void put(String word, List<String> meanings) {
+        map.put(word, frozen(meanings));
+    }
+
+    @Override
+    public boolean remove(String word) {
+        return map.remove(word) != null;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, List<String>> action) {
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        return new ArrayList<>(map.keySet());
+    }
+
+    // Object layout of a 64-bit JVM with compressed references: 12 byte headers, 8 byte alignment
+    @Override
+    public long footprintBytes() {
+        long bytes = 16 + 4L * Integer.highestOneBit(Math.max(1, map.size() * 4 / 3)) * 2; // table
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            bytes += 32;                          // map node
+            bytes += stringBytes(entry.getKey());
+            List<String> meanings = entry.getValue();
+            bytes += 16 + 24 + align(16 + 4L * meanings.size()); // unmodifiable wrapper, ArrayList and its array
+            for (String meaning : meanings) {
+                bytes += stringBytes(meaning);
+            }
+        }
+        return bytes;
+    }
+
+    // A private copy the caller cannot change
+    private static List<String> frozen(List<String> meanings) {
+        return Collections.unmodifiableList(new ArrayList<>(meanings));
+    }
+
+    private static long stringBytes(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) {
+            latin1 = s.charAt(i) < 256;
+        }
+        return 24 + align(16 + (long) s.length() * (latin1 ? 1 : 2));
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counting Bloom filter of the headwords, so a query for a word that is certainly not in the
+// dictionary can skip the store lookup. Each word sets five 4-bit counters. Adds count up before
+// the word is stored and removes count down after it is gone, so the filter never says no to a word
+// the store holds. A counter that reaches 15 stays there, which only costs false positives. The
+// table is sized once, for twice the words loaded at startup; past that the false positive rate
+// climbs but answers stay right.
+class KeyFilter {
+    private static final int HASHES = 5;
+    private static final int COUNTERS_PER_KEY = 8;
+    private static final int MIN_KEYS = 1 << 20;
+
+    private final AtomicLongArray table;   // 16 counters per long
+    private final long counters;
+    private final LongAdder skipped = new LongAdder();
+
+    KeyFilter(Collection<String> keys) {
+        counters = (long) Math.max(MIN_KEYS, keys.size() * 2) * COUNTERS_PER_KEY;
+        table = new AtomicLongArray((int) (counters / 16));
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    // False only if the word is certainly not in the dictionary
+    boolean mightContain(String word) {
+        long h = hash(word);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = counter(h1 + i * h2);
+            if (((table.get(counter >>> 4) >>> ((counter & 15) << 2)) & 0xf) == 0) {
+                skipped.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Lookups answered "certainly not" so far
+    long skipped() {
+        return skipped.sum();
+    }
+
+    void add(String word) {
+        change(word, 1);
+    }
+
+    void remove(String word) {
+        change(word, -1);
+    }
+
+    private void change(String word, int delta) {
+        long h = hash(word);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = counter(h1 + i * h2);
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            while (true) {
+                long old = table.get(index);
+                long value = (old >>> shift) & 0xf;
+                if (value == 0xf || (value == 0 && delta < 0)) {
+                    break;
+                }
+                if (table.compareAndSet(index, old, old + ((long) delta << shift))) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Maps a hash onto the counters by multiplying instead of dividing
+    private int counter(int h) {
+        return (int) (((h & 0xffffffffL) * counters) >>> 32);
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, mixed so both halves are usable
+    private static long hash(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+}
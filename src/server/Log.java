@@ -0,0 +1,220 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The server's log. Callers only put an event in a bounded queue; a background thread formats the
+// events and writes them, warnings and errors to stderr and the rest to stdout, so the accept loop
+// and the workers never wait on the console. When the queue is full an event is dropped and
+// counted rather than wait, and the count is logged once there is room.
+//
+// Levels below dictionary.log.level are off. Their flags are constants, so a call site guarded by
+// one, as in "if (Log.DEBUG) Log.debug(...)", costs nothing, not even building the message, when
+// the level is off. Events that a client can cause in bulk (connects, disconnects, bad requests)
+// also go through a RateLimit, which lets a few through per second and reports how many it held back.
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level THRESHOLD = Level.valueOf(ServerConfig.LOG_LEVEL.toUpperCase());
+    static final boolean DEBUG = THRESHOLD.compareTo(Level.DEBUG) <= 0;
+    static final boolean INFO = THRESHOLD.compareTo(Level.INFO) <= 0;
+    static final boolean WARN = THRESHOLD.compareTo(Level.WARN) <= 0;
+
+    static final RateLimit CONNECTIONS = new RateLimit("connection", ServerConfig.LOG_CONNECTIONS_PER_SECOND);
+    static final RateLimit BAD_REQUESTS = new RateLimit("bad request", ServerConfig.LOG_BAD_REQUESTS_PER_SECOND);
+
+    private static final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(ServerConfig.LOG_BUFFER_EVENTS);
+    private static final LongAdder dropped = new LongAdder();
+    // Longest flush waits for the writer thread before writing what is left itself
+    private static final long FLUSH_WAIT_MS = 2000;
+    // Held while events are written
+    private static final Object writeLock = new Object();
+    private static final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static class Event {
+        final long time = System.currentTimeMillis();
+        final Level level;
+        final String thread = Thread.currentThread().getName();
+        final String message;
+
+        Event(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    // Queued by flush; the writer counts it down once every event ahead of it is written
+    private static class Flush extends Event {
+        final CountDownLatch written = new CountDownLatch(1);
+
+        Flush() {
+            super(null, null);
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Log::writeForever, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static void debug(String message) {
+        if (DEBUG) {
+            log(Level.DEBUG, message);
+        }
+    }
+
+    static void info(String message) {
+        if (INFO) {
+            log(Level.INFO, message);
+        }
+    }
+
+    static void warn(String message) {
+        if (WARN) {
+            log(Level.WARN, message);
+        }
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    // The stack trace is formatted here, as the exception may change once this returns
+    static void error(String message, Throwable e) {
+        StringWriter trace = new StringWriter();
+        e.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, message + System.lineSeparator() + trace.toString().trim());
+    }
+
+    private static void log(Level level, String message) {
+        if (!queue.offer(new Event(level, message))) {
+            dropped.increment();
+        }
+    }
+
+    // Write everything queued so far before returning; used on shutdown. The writer thread does
+    // the writing, so nothing it has already taken off the queue comes out late or is lost.
+    static void flush() {
+        Flush flush = new Flush();
+        try {
+            if (queue.offer(flush, FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)
+                    && flush.written.await(FLUSH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The writer is stuck or gone; write what is left here
+        List<Event> batch = new ArrayList<>();
+        synchronized (writeLock) {
+            queue.drainTo(batch);
+            write(batch);
+        }
+    }
+
+    // Only this thread takes events off the queue, unless flush finds it stuck
+    private static void writeForever() {
+        List<Event> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Event first = queue.take();
+                synchronized (writeLock) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    write(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void write(List<Event> batch) {
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            batch.add(new Event(Level.WARN, lost + " log messages dropped, the log queue was full."));
+        }
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        List<Flush> flushes = new ArrayList<>();
+        for (Event event : batch) {
+            if (event instanceof Flush) {
+                flushes.add((Flush) event);
+                continue;
+            }
+            StringBuilder to = event.level.compareTo(Level.WARN) >= 0 ? err : out;
+            to.append(timeFormat.format(new Date(event.time))).append(' ')
+                    .append(String.format("%-5s", event.level)).append(" [").append(event.thread).append("] ")
+                    .append(event.message).append(System.lineSeparator());
+        }
+        print(System.out, out);
+        print(System.err, err);
+        for (Flush flush : flushes) {
+            flush.written.countDown();
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+        }
+    }
+
+    // Lets up to perSecond events through in each second and counts the rest. The first event let
+    // through in a later second is preceded by how many were held back. Lock-free, as the accept
+    // loop calls it.
+    static class RateLimit {
+        private final String name;
+        private final int perSecond;
+        private final AtomicLong second = new AtomicLong();
+        private final AtomicLong passed = new AtomicLong();
+        private final LongAdder suppressed = new LongAdder();
+
+        RateLimit(String name, int perSecond) {
+            this.name = name;
+            this.perSecond = perSecond;
+        }
+
+        // Whether the event may be logged now
+        boolean allow() {
+            long now = System.nanoTime() / 1_000_000_000L;
+            long current = second.get();
+            if (now != current && second.compareAndSet(current, now)) {
+                passed.set(0);
+                long held = suppressed.sumThenReset();
+                if (held > 0 && WARN) {
+                    log(Level.WARN, held + " " + name + " messages were not logged, over "
+                            + perSecond + " a second.");
+                }
+            }
+            if (passed.incrementAndGet() <= perSecond) {
+                return true;
+            }
+            suppressed.increment();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Inverted index from the words used in meanings to the headwords whose meanings use them, for
+// "which words mean X?" searches. Meanings are split into lower-case tokens of letters and digits.
+// Every headword gets a numeric id, and each token keeps a posting list of (id, occurrences)
+// pairs, sorted by id and stored as varint deltas. Changes go to small sorted buffers beside the
+// compressed list and are merged into it once the buffers grow, so an edit does not re-encode a
+// long list every time. Results are ranked by BM25.
+class MeaningIndex {
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> words = new ArrayList<>();   // by id, null if the id is free
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private int[][] docTerms = new int[1024][];             // term ids used by each word, for removal
+    private int[] docLength = new int[1024];                // tokens in each word's meanings
+    private long totalLength;
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<Posting> postings = new ArrayList<>(); // by term id
+
+    // Replace the whole index with the entries of the store
+    void rebuild(DictionaryStore dictionary) {
+        lock.writeLock().lock();
+        try {
+            clear();
+            // Ids are handed out in order, so each posting list can simply be appended to
+            Map<Integer, IntList> building = new HashMap<>();
+            dictionary.forEach((word, meanings) -> {
+                int id = newId(word);
+                Map<String, Integer> counts = tokenCounts(meanings);
+                int[] terms = new int[counts.size()];
+                int length = 0;
+                int i = 0;
+                for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                    int term = termId(entry.getKey());
+                    terms[i++] = term;
+                    length += entry.getValue();
+                    IntList list = building.computeIfAbsent(term, t -> new IntList());
+                    list.add(id);
+                    list.add(entry.getValue());
+                }
+                docTerms[id] = terms;
+                docLength[id] = length;
+                totalLength += length;
+            });
+            for (Map.Entry<Integer, IntList> entry : building.entrySet()) {
+                IntList list = entry.getValue();
+                postings.get(entry.getKey()).encode(list.values, list.size / 2);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Index the word's meanings, replacing whatever was indexed for it before
+    void put(String word, List<String> meanings) {
+        lock.writeLock().lock();
+        try {
+            Integer existing = ids.get(word);
+            int id;
+            if (existing != null) {
+                id = existing;
+                unpost(id);
+            } else {
+                id = newId(word);
+            }
+            Map<String, Integer> counts = tokenCounts(meanings);
+            int[] terms = new int[counts.size()];
+            int length = 0;
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                int term = termId(entry.getKey());
+                terms[i++] = term;
+                length += entry.getValue();
+                postings.get(term).add(id, entry.getValue());
+            }
+            docTerms[id] = terms;
+            docLength[id] = length;
+            totalLength += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String word) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.remove(word);
+            if (id != null) {
+                unpost(id);
+                words.set(id, null);
+                freeIds.push(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The best matching headwords for the query, best first. With all = true a word must use every
+    // query token, otherwise any one of them is enough.
+    List<String> search(String query, boolean all, int limit) {
+        Set<String> tokens = tokenCounts(Collections.singletonList(query)).keySet();
+        if (tokens.isEmpty()) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            int docs = ids.size();
+            float averageLength = docs == 0 ? 1 : Math.max(1, (float) totalLength / docs);
+            List<Posting> lists = new ArrayList<>();
+            for (String token : tokens) {
+                Integer term = termIds.get(token);
+                if (term == null || postings.get(term).count == 0) {
+                    if (all) {
+                        return new ArrayList<>();
+                    }
+                    continue;
+                }
+                lists.add(postings.get(term));
+            }
+            // Rarest first, so an AND query walks the smallest list and looks its ids up in the others
+            lists.sort(Comparator.comparingInt(p -> p.count));
+            int[][] decoded = new int[lists.size()][];
+            float[] idf = new float[lists.size()];
+            for (int n = 0; n < lists.size(); n++) {
+                int count = lists.get(n).count;
+                decoded[n] = lists.get(n).decode();
+                idf[n] = (float) Math.log(1 + (docs - count + 0.5) / (count + 0.5));
+            }
+            // Keep the best `limit` in a min-heap; equal scores go alphabetically
+            Comparator<Hit> order = Comparator.<Hit>comparingDouble(h -> h.score)
+                    .thenComparing(h -> words.get(h.id), Comparator.reverseOrder());
+            PriorityQueue<Hit> best = new PriorityQueue<>(order);
+            int[] positions = new int[decoded.length];
+            while (true) {
+                // The next id to score: the smallest one left for OR, the next id of the rarest list
+                // that every other list also has for AND
+                int id;
+                if (all) {
+                    if (positions[0] == decoded[0].length) {
+                        break;
+                    }
+                    id = decoded[0][positions[0]];
+                    boolean everywhere = true;
+                    for (int n = 1; n < decoded.length && everywhere; n++) {
+                        positions[n] = seek(decoded[n], positions[n], id);
+                        everywhere = positions[n] < decoded[n].length && decoded[n][positions[n]] == id;
+                    }
+                    if (!everywhere) {
+                        positions[0] += 2;
+                        continue;
+                    }
+                } else {
+                    id = Integer.MAX_VALUE;
+                    for (int n = 0; n < decoded.length; n++) {
+                        if (positions[n] < decoded[n].length) {
+                            id = Math.min(id, decoded[n][positions[n]]);
+                        }
+                    }
+                    if (id == Integer.MAX_VALUE) {
+                        break;
+                    }
+                }
+                float score = 0;
+                float norm = K1 * (1 - B + B * docLength[id] / averageLength);
+                for (int n = 0; n < decoded.length; n++) {
+                    if (positions[n] < decoded[n].length && decoded[n][positions[n]] == id) {
+                        float tf = decoded[n][positions[n] + 1];
+                        score += idf[n] * tf * (K1 + 1) / (tf + norm);
+                        positions[n] += 2;
+                    }
+                }
+                Hit hit = new Hit(id, score);
+                if (best.size() < limit) {
+                    best.add(hit);
+                } else if (order.compare(hit, best.peek()) > 0) {
+                    best.poll();
+                    best.add(hit);
+                }
+            }
+            LinkedList<String> result = new LinkedList<>();
+            while (!best.isEmpty()) {
+                result.addFirst(words.get(best.poll().id));
+            }
+            return new ArrayList<>(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Position of the first pair at or after `from` whose id is not below the given one, found by
+    // galloping ahead and then a binary search
+    private static int seek(int[] pairs, int from, int id) {
+        int step = 2;
+        int high = from;
+        while (high < pairs.length && pairs[high] < id) {
+            from = high + 2;
+            high += step;
+            step *= 2;
+        }
+        high = Math.min(high, pairs.length);
+        while (from < high) {
+            int mid = ((from + high) >>> 1) & ~1;
+            if (pairs[mid] < id) {
+                from = mid + 2;
+            } else {
+                high = mid;
+            }
+        }
+        return from;
+    }
+
+    private void clear() {
+        ids.clear();
+        words.clear();
+        freeIds.clear();
+        termIds.clear();
+        postings.clear();
+        totalLength = 0;
+    }
+
+    private int newId(String word) {
+        int id;
+        if (freeIds.isEmpty()) {
+            id = words.size();
+            words.add(word);
+            if (id == docTerms.length) {
+                docTerms = Arrays.copyOf(docTerms, id * 2);
+                docLength = Arrays.copyOf(docLength, id * 2);
+            }
+        } else {
+            id = freeIds.pop();
+            words.set(id, word);
+        }
+        ids.put(word, id);
+        return id;
+    }
+
+    private int termId(String token) {
+        Integer term = termIds.get(token);
+        if (term == null) {
+            term = postings.size();
+            termIds.put(token, term);
+            postings.add(new Posting());
+        }
+        return term;
+    }
+
+    // Take the word's id out of the posting lists it is in
+    private void unpost(int id) {
+        for (int term : docTerms[id]) {
+            postings.get(term).remove(id);
+        }
+        totalLength -= docLength[id];
+        docTerms[id] = null;
+        docLength[id] = 0;
+    }
+
+    private static Map<String, Integer> tokenCounts(List<String> texts) {
+        Map<String, Integer> counts = new HashMap<>();
+        StringBuilder token = new StringBuilder();
+        for (String text : texts) {
+            for (int i = 0; i <= text.length(); i++) {
+                int c = i < text.length() ? text.codePointAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    token.appendCodePoint(Character.toLowerCase(c));
+                    if (Character.isSupplementaryCodePoint(c)) {
+                        i++;
+                    }
+                } else if (token.length() > 0) {
+                    counts.merge(token.toString(), 1, Integer::sum);
+                    token.setLength(0);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static class Hit {
+        final int id;
+        final float score;
+
+        Hit(int id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    // Growable list of ints
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // Posting list of one token: (id, occurrences) pairs sorted by id, as varint deltas, plus the
+    // pairs added and the ids removed since the list was last encoded
+    private static class Posting {
+        private static final int MIN_MERGE = 32;
+
+        byte[] data = new byte[0];
+        int encoded;                      // pairs in data
+        int count;                        // pairs in the list after the pending changes
+        int[] added = new int[0];         // pending (id, occurrences) pairs, sorted by id
+        int addedCount;
+        int[] removed = new int[0];       // pending removals from data, sorted
+        int removedCount;
+
+        // The word is not in the list when this is called
+        void add(int id, int occurrences) {
+            int at = search(added, addedCount, 2, id);
+            added = ensure(added, addedCount * 2 + 2);
+            System.arraycopy(added, at * 2, added, at * 2 + 2, (addedCount - at) * 2);
+            added[at * 2] = id;
+            added[at * 2 + 1] = occurrences;
+            addedCount++;
+            count++;
+            mergeIfLarge();
+        }
+
+        // The word is in the list when this is called
+        void remove(int id) {
+            int at = search(added, addedCount, 2, id);
+            if (at < addedCount && added[at * 2] == id) {
+                System.arraycopy(added, at * 2 + 2, added, at * 2, (addedCount - at - 1) * 2);
+                addedCount--;
+            } else {
+                at = search(removed, removedCount, 1, id);
+                removed = ensure(removed, removedCount + 1);
+                System.arraycopy(removed, at, removed, at + 1, removedCount - at);
+                removed[at] = id;
+                removedCount++;
+            }
+            count--;
+            mergeIfLarge();
+        }
+
+        // All pairs as { id, occurrences, id, occurrences, ... }
+        int[] decode() {
+            int[] result = new int[count * 2];
+            int n = 0;
+            int a = 0;
+            int r = 0;
+            int position = 0;
+            int id = 0;
+            for (int i = 0; i < encoded; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += value;
+                int occurrences = 0;
+                shift = 0;
+                do {
+                    b = data[position++];
+                    occurrences |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                while (r < removedCount && removed[r] < id) {
+                    r++;
+                }
+                if (r < removedCount && removed[r] == id) {
+                    continue;
+                }
+                while (a < addedCount && added[a * 2] < id) {
+                    result[n++] = added[a * 2];
+                    result[n++] = added[a * 2 + 1];
+                    a++;
+                }
+                result[n++] = id;
+                result[n++] = occurrences;
+            }
+            while (a < addedCount) {
+                result[n++] = added[a * 2];
+                result[n++] = added[a * 2 + 1];
+                a++;
+            }
+            return result;
+        }
+
+        void encode(int[] pairs, int pairCount) {
+            byte[] out = new byte[pairCount * 4 + 16];
+            int position = 0;
+            int previous = 0;
+            for (int i = 0; i < pairCount; i++) {
+                if (out.length - position < 10) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                position = putVarint(out, position, pairs[i * 2] - previous);
+                position = putVarint(out, position, pairs[i * 2 + 1]);
+                previous = pairs[i * 2];
+            }
+            data = Arrays.copyOf(out, position);
+            encoded = pairCount;
+            count = pairCount;
+            addedCount = 0;
+            removedCount = 0;
+        }
+
+        private void mergeIfLarge() {
+            if (addedCount + removedCount > Math.max(MIN_MERGE, encoded / 8)) {
+                encode(decode(), count);
+            }
+        }
+
+        private static int putVarint(byte[] out, int position, int value) {
+            while ((value & ~0x7f) != 0) {
+                out[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out[position++] = (byte) value;
+            return position;
+        }
+
+        // First index whose key is not below the id, in an array of `stride` ints per entry
+        private static int search(int[] array, int entries, int stride, int id) {
+            int low = 0;
+            int high = entries;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (array[mid * stride] < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static int[] ensure(int[] array, int length) {
+            return array.length >= length ? array : Arrays.copyOf(array, Math.max(length, array.length * 2));
+        }
+    }
+}
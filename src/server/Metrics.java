@@ -0,0 +1,239 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of the request path, for the "stats" request and the metrics
+// endpoint. Recording only adds to LongAdders, so the workers never wait on each other or on a
+// reader; a reader sums the adders, which is why totals read while requests run may be a request
+// or two apart.
+final class Metrics {
+    // Request types timed separately; anything else is counted as "other"
+    private static final String[] TYPES = { "query", "add", "remove", "update", "addmeaning", "prefix", "search",
+            "stats", "subscribe", "suggest", "keys", "mquery", "madd", "maddmeaning", "other" };
+    // Upper bounds of the histogram buckets, in microseconds; the last bucket has none
+    private static final long[] BOUNDS_US = { 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000 };
+
+    private static final Map<String, Integer> typeIndex = new HashMap<>();
+    private static final Histogram[] requests = new Histogram[TYPES.length];
+    private static final LongAdder[] errors = new LongAdder[TYPES.length];
+    private static final Histogram fuzzyScans = new Histogram();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder parseErrors = new LongAdder();
+    private static final LongAdder connections = new LongAdder();
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            typeIndex.put(TYPES[i], i);
+            requests[i] = new Histogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // A request of the given type was answered after the given time
+    static void request(String type, boolean error, long nanos) {
+        Integer i = typeIndex.get(type);
+        if (i == null) {
+            i = typeIndex.get(type.toLowerCase());
+        }
+        int index = i == null ? TYPES.length - 1 : i;
+        requests[index].record(nanos);
+        if (error) {
+            errors[index].increment();
+        }
+    }
+
+    // A look for the closest word to a missing one took the given time
+    static void fuzzyScan(long nanos) {
+        fuzzyScans.record(nanos);
+    }
+
+    // A request that could not be parsed
+    static void parseError() {
+        parseErrors.increment();
+    }
+
+    static void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    static void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    static void connected() {
+        connections.increment();
+    }
+
+    static void disconnected() {
+        connections.decrement();
+    }
+
+    // Put the counters into a "stats" response. Latencies are in microseconds, and the percentiles
+    // are the upper bounds of the buckets they fall in.
+    static void addStats(Map<String, Long> stats) {
+        for (int i = 0; i < TYPES.length; i++) {
+            long count = requests[i].count();
+            if (count == 0) {
+                continue;
+            }
+            String prefix = "requests." + TYPES[i] + ".";
+            stats.put(prefix + "count", count);
+            stats.put(prefix + "errors", errors[i].sum());
+            stats.put(prefix + "meanUs", requests[i].sumNanos() / count / 1000);
+            stats.put(prefix + "p50Us", requests[i].percentileMicros(50));
+            stats.put(prefix + "p99Us", requests[i].percentileMicros(99));
+        }
+        stats.put("fuzzy.scans", fuzzyScans.count());
+        stats.put("fuzzy.meanUs", fuzzyScans.count() == 0 ? 0 : fuzzyScans.sumNanos() / fuzzyScans.count() / 1000);
+        stats.put("fuzzy.p99Us", fuzzyScans.percentileMicros(99));
+        stats.put("connections.active", connections.sum());
+        stats.put("threads", (long) ManagementFactory.getThreadMXBean().getThreadCount());
+        stats.put("bytes.in", bytesIn.sum());
+        stats.put("bytes.out", bytesOut.sum());
+        stats.put("parseErrors", parseErrors.sum());
+    }
+
+    // Everything in the Prometheus text format. The server's other statistics, given as a "stats"
+    // map, become gauges named after their keys.
+    static String prometheus(Map<String, Long> componentStats) {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP dictionary_requests_total Requests answered, by type.\n");
+        out.append("# TYPE dictionary_requests_total counter\n");
+        for (int i = 0; i < TYPES.length; i++) {
+            out.append("dictionary_requests_total{type=\"").append(TYPES[i]).append("\"} ").append(requests[i].count()).append('\n');
+        }
+        out.append("# HELP dictionary_request_errors_total Requests answered with status error, by type.\n");
+        out.append("# TYPE dictionary_request_errors_total counter\n");
+        for (int i = 0; i < TYPES.length; i++) {
+            out.append("dictionary_request_errors_total{type=\"").append(TYPES[i]).append("\"} ").append(errors[i].sum()).append('\n');
+        }
+        out.append("# HELP dictionary_request_duration_seconds Time to answer a request, by type.\n");
+        out.append("# TYPE dictionary_request_duration_seconds histogram\n");
+        for (int i = 0; i < TYPES.length; i++) {
+            requests[i].prometheus(out, "dictionary_request_duration_seconds", "type=\"" + TYPES[i] + "\",");
+        }
+        out.append("# HELP dictionary_fuzzy_scan_duration_seconds Time to find the closest word to a missing one.\n");
+        out.append("# TYPE dictionary_fuzzy_scan_duration_seconds histogram\n");
+        fuzzyScans.prometheus(out, "dictionary_fuzzy_scan_duration_seconds", "");
+        counter(out, "dictionary_bytes_received_total", "Bytes read from clients.", bytesIn.sum());
+        counter(out, "dictionary_bytes_sent_total", "Bytes written to clients.", bytesOut.sum());
+        counter(out, "dictionary_parse_errors_total", "Requests that could not be parsed.", parseErrors.sum());
+        gauge(out, "dictionary_connections_active", "Open client connections.", connections.sum());
+        gauge(out, "dictionary_threads", "Live threads of the server.", ManagementFactory.getThreadMXBean().getThreadCount());
+        for (Map.Entry<String, Long> stat : componentStats.entrySet()) {
+            gauge(out, "dictionary_" + metricName(stat.getKey()), "Server statistic " + stat.getKey() + ".", stat.getValue());
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // "keyFilter.skippedLookups" becomes "key_filter_skipped_lookups"
+    private static String metricName(String key) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (Character.isUpperCase(c)) {
+                name.append('_').append(Character.toLowerCase(c));
+            } else if (Character.isLetterOrDigit(c)) {
+                name.append(c);
+            } else {
+                name.append('_');
+            }
+        }
+        return name.toString();
+    }
+
+    // Counts of durations in fixed buckets, plus their sum
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_US.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int i = 0;
+            while (i < BOUNDS_US.length && micros > BOUNDS_US[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long sumNanos() {
+            return sumNanos.sum();
+        }
+
+        // The upper bound of the bucket the percentile falls in; past the last bound, that bound
+        long percentileMicros(double percent) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_US.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BOUNDS_US[i];
+                }
+            }
+            return BOUNDS_US[BOUNDS_US.length - 1];
+        }
+
+        // Cumulative buckets as Prometheus expects; labels, if any, end with a comma
+        void prometheus(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BOUNDS_US.length ? Double.toString(BOUNDS_US[i] / 1e6) : "+Inf";
+                out.append(name).append("_bucket{").append(labels).append("le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            out.append(name).append("_sum").append(plain).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(plain).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
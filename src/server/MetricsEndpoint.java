@@ -0,0 +1,41 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Serves the server's metrics at http://127.0.0.1:<port>/metrics in the Prometheus text format.
+// It listens on the loopback address only, for a scraper or agent on the same machine, and runs on
+// a thread of its own so a scrape never takes a worker from clients.
+final class MetricsEndpoint {
+    private MetricsEndpoint() {
+    }
+
+    static void start(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.prometheus(DictionaryServer.componentStats()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+        Log.info("Metrics served on http://127.0.0.1:" + port + "/metrics");
+    }
+}
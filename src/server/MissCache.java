@@ -0,0 +1,131 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// Answers of recent query misses: the similar word suggested for the missing word, or that there
+// was none. Finding the suggestion walks the suggestion tries, so repeating a typo is served from
+// here instead. The least recently used entries go once the cache holds its maximum.
+// Adding a word can give any miss a closer suggestion, so every add starts a new generation and
+// entries from older ones are dropped when they are next looked up. Removing a word only matters
+// to the misses that suggested it, so an entry is also dropped when its suggestion is no longer
+// in the dictionary.
+// As in ResponseCache, entries are split by word hash into segments with a lock each, so misses
+// for different words do not wait on each other; the generation is shared.
+class MissCache {
+    private static final int MAX_SEGMENTS = 64;
+    // Fewest entries worth giving a segment of its own
+    private static final int MIN_SEGMENT_ENTRIES = 256;
+
+    private final int maxEntries;
+    private final Segment[] segments;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    MissCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        int count = Math.min(MAX_SEGMENTS, Math.max(1, Integer.highestOneBit(maxEntries / MIN_SEGMENT_ENTRIES)));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / count));
+        }
+    }
+
+    boolean enabled() {
+        return maxEntries > 0;
+    }
+
+    // The cached answer for the missing word, or null if there is none. An answer with no suggestion
+    // is an Entry whose suggestion is null.
+    Entry get(String word, Predicate<String> exists) {
+        Segment segment = segment(word);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(word);
+            if (entry != null && (entry.generation != generation.get() || entry.suggestion != null && !exists.test(entry.suggestion))) {
+                segment.entries.remove(word);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    // Taken before the suggestion is looked for, so that an add made meanwhile keeps it out
+    long generation() {
+        return generation.get();
+    }
+
+    void put(String word, long generation, String suggestion) {
+        Segment segment = segment(word);
+        synchronized (segment) {
+            if (generation == this.generation.get()) {
+                segment.entries.put(word, new Entry(generation, suggestion));
+            }
+        }
+    }
+
+    // Called after a word is added to the dictionary
+    void wordAdded() {
+        generation.incrementAndGet();
+    }
+
+    void addStats(Map<String, Long> stats) {
+        long entries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+            }
+        }
+        stats.put("missCache.hits", hits.sum());
+        stats.put("missCache.misses", misses.sum());
+        stats.put("missCache.evictions", evictions.sum());
+        stats.put("missCache.entries", entries);
+    }
+
+    private Segment segment(String word) {
+        int h = word.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    private class Segment {
+        final LinkedHashMap<String, Entry> entries;
+
+        Segment(int maxEntries) {
+            entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > maxEntries) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    static class Entry {
+        final long generation;
+        final String suggestion;
+
+        Entry(long generation, String suggestion) {
+            this.generation = generation;
+            this.suggestion = suggestion;
+        }
+    }
+}
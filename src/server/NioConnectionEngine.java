@@ -0,0 +1,397 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+// Non-blocking engine: one selector thread does all socket I/O and a fixed pool of workers
+// processes requests. A connection's requests are parsed one at a time; requests without an id
+// are also processed one at a time so their responses go back in request order, while requests
+// with an id release the connection as soon as they are parsed and are answered as they complete.
+// Connection state is only touched on the selector thread; workers hand their results back
+// through a task queue. A connection whose first byte starts the binary protocol's handshake
+// is split into frames instead of lines. Changes pushed to a subscribed connection are queued on
+// it like responses, from the selector thread.
+class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // Stop processing a connection's requests while this much of its output is still unsent
+    private static final int MAX_QUEUED_OUTPUT_BYTES = 1024 * 1024;
+
+    private final ExecutorService workers;
+    private final Semaphore inFlight = new Semaphore(ServerConfig.MAX_IN_FLIGHT);
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Connection> waiting = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private final byte[] busyResponse = (BUSY_RESPONSE + "\n").getBytes(StandardCharsets.UTF_8);
+    private Selector selector;
+    private int connections;
+
+    NioConnectionEngine(int workerThreads) {
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        boolean started;     // the first byte has been read, so the protocol is known
+        boolean binary;
+        boolean handshaking; // binary, and the client's version byte is still to come
+        final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();  // or partial frame
+        final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        int queuedOutputBytes;
+        boolean busy;      // a request is with the workers and the next one has to wait for it
+        int pipelined;     // requests with an id still being processed
+        boolean waiting;   // queued for an in-flight permit
+        boolean inputClosed;
+        boolean closing;   // close once the queued output is written
+        boolean closed;
+        ChangeFeed.Subscriber subscriber;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Dictionary server started on port " + port);
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(server);
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(c);
+                        }
+                    } catch (IOException e) {
+                        if (Log.INFO && Log.CONNECTIONS.allow()) {
+                            Log.info("Client disconnected: " + e.getMessage());
+                        }
+                        close(c);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            if (connections >= ServerConfig.MAX_CONNECTIONS) {
+                try {
+                    channel.write(ByteBuffer.wrap(busyResponse));
+                } catch (IOException e) {
+                    // The client is being turned away anyway
+                }
+                channel.close();
+                continue;
+            }
+            connections++;
+            Metrics.connected();
+            if (Log.INFO && Log.CONNECTIONS.allow()) {
+                Log.info("Client connected: " + channel.socket().getInetAddress());
+            }
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Connection c = new Connection(channel);
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+            c.subscriber = (line, frame) -> post(() -> push(c, c.binary ? frame : line));
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        readBuffer.clear();
+        int n = c.channel.read(readBuffer);
+        if (n > 0) {
+            Metrics.bytesIn(n);
+        }
+        if (n < 0) {
+            c.inputClosed = true;
+            setInterest(c, SelectionKey.OP_READ, false);
+            closeIfDone(c);
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        if (!c.started && n > 0) {
+            c.started = true;
+            c.binary = bytes[0] == BinaryProtocol.MAGIC;
+            c.handshaking = c.binary;
+        }
+        if (c.binary) {
+            readFrames(c, bytes, n);
+            return;
+        }
+        int lineStart = 0;
+        for (int i = 0; i < n; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            byte[] line;
+            if (c.partialLine.size() == 0) {
+                line = Arrays.copyOfRange(bytes, lineStart, i);
+            } else {
+                c.partialLine.write(bytes, lineStart, i - lineStart);
+                line = c.partialLine.toByteArray();
+                c.partialLine.reset();
+            }
+            c.pending.add(line);
+            lineStart = i + 1;
+        }
+        c.partialLine.write(bytes, lineStart, n - lineStart);
+        if (c.partialLine.size() > ServerConfig.MAX_LINE_BYTES) {
+            tooLarge(c);
+            return;
+        }
+        if (c.pending.size() >= ServerConfig.MAX_PENDING_PER_CONNECTION) {
+            setInterest(c, SelectionKey.OP_READ, false);
+        }
+        dispatch(c);
+    }
+
+    // Split what was read from a binary connection into frames, after the handshake. An
+    // unfinished frame is kept in partialLine until the rest arrives.
+    private void readFrames(Connection c, byte[] bytes, int n) {
+        int position = 0;
+        int end = n;
+        if (c.partialLine.size() > 0) {
+            c.partialLine.write(bytes, 0, n);
+            bytes = c.partialLine.toByteArray();
+            end = bytes.length;
+            c.partialLine.reset();
+        }
+        if (c.handshaking) {
+            if (end < 2) {
+                c.partialLine.write(bytes, 0, end);
+                return;
+            }
+            // The client's version is not checked; it checks ours in the reply
+            c.handshaking = false;
+            position = 2;
+            write(c, BinaryProtocol.HANDSHAKE);
+        }
+        while (end - position >= 4) {
+            int length = (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16
+                    | (bytes[position + 2] & 0xff) << 8 | (bytes[position + 3] & 0xff);
+            if (length < 0 || length > ServerConfig.MAX_LINE_BYTES) {
+                tooLarge(c);
+                return;
+            }
+            if (end - position - 4 < length) {
+                break;
+            }
+            c.pending.add(Arrays.copyOfRange(bytes, position + 4, position + 4 + length));
+            position += 4 + length;
+        }
+        c.partialLine.write(bytes, position, end - position);
+        if (c.pending.size() >= ServerConfig.MAX_PENDING_PER_CONNECTION) {
+            setInterest(c, SelectionKey.OP_READ, false);
+        }
+        dispatch(c);
+    }
+
+    // Answer a request over the size limit and close the connection once the answer is sent
+    private void tooLarge(Connection c) {
+        c.partialLine.reset();
+        c.pending.clear();
+        DictionaryServer.ResponseMessage res = DictionaryServer.errorResponse("Request too large.");
+        c.closing = true;
+        setInterest(c, SelectionKey.OP_READ, false);
+        write(c, c.binary
+                ? BinaryProtocol.encodeResponse(0, null, res)
+                : (DictionaryServer.toJson(res) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Hand the connection's next request to the workers if it is free to run
+    private void dispatch(Connection c) {
+        if (c.closed || c.busy || c.pending.isEmpty() || c.queuedOutputBytes >= MAX_QUEUED_OUTPUT_BYTES
+                || c.pipelined >= ServerConfig.MAX_PIPELINED_PER_CONNECTION) {
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            if (!c.waiting) {
+                c.waiting = true;
+                waiting.add(c);
+            }
+            return;
+        }
+        c.busy = true;
+        boolean binary = c.binary;
+        byte[] line = c.pending.poll();
+        if (!c.inputClosed && !c.closing && c.pending.size() < ServerConfig.MAX_PENDING_PER_CONNECTION) {
+            setInterest(c, SelectionKey.OP_READ, true);
+        }
+        workers.execute(() -> {
+            boolean pipelined = false;
+            byte[] bytes = null;
+            try {
+                // A trailing \r is JSON whitespace, so CRLF line endings need no handling here
+                DictionaryServer.RequestMessage req = binary
+                        ? DictionaryServer.parseFrame(line, 0, line.length)
+                        : DictionaryServer.parseRequest(line, 0, line.length);
+                if (req != null) {
+                    req.subscriber = c.subscriber;
+                }
+                pipelined = req != null && req.id != null;
+                if (pipelined) {
+                    // The client matches responses by id, so the next request need not wait for this one
+                    post(() -> {
+                        c.busy = false;
+                        c.pipelined++;
+                        dispatch(c);
+                    });
+                }
+                bytes = binary ? DictionaryServer.handleFrame(req) : DictionaryServer.handleRequest(req);
+            } catch (Throwable e) {
+                Log.error("Error handling request", e);
+            } finally {
+                // Always completed, so the permit comes back and the connection is not left busy
+                inFlight.release();
+                boolean wasPipelined = pipelined;
+                byte[] response = bytes;
+                post(() -> completed(c, response, wasPipelined));
+            }
+        });
+    }
+
+    // A null response means the request failed without one; the connection is then closed once
+    // its other requests have been answered, as its client would wait for that answer forever
+    private void completed(Connection c, byte[] response, boolean pipelined) {
+        if (pipelined) {
+            c.pipelined--;
+        } else {
+            c.busy = false;
+        }
+        if (response == null && !c.closed) {
+            c.closing = true;
+            c.pending.clear();
+            setInterest(c, SelectionKey.OP_READ, false);
+        } else if (!c.closed) {
+            write(c, response);
+            dispatch(c);
+        }
+        // A permit was released, so a connection that could not get one may run now
+        while (!waiting.isEmpty() && inFlight.availablePermits() > 0) {
+            Connection next = waiting.poll();
+            next.waiting = false;
+            dispatch(next);
+        }
+        closeIfDone(c);
+    }
+
+    // A subscriber that has not read its earlier output is disconnected rather than sent more;
+    // skipping the push instead would leave its client with a stale answer
+    private void push(Connection c, byte[] bytes) {
+        if (c.closed) {
+            return;
+        }
+        if (c.queuedOutputBytes >= MAX_QUEUED_OUTPUT_BYTES) {
+            Log.warn("Client disconnected: too far behind on pushed changes");
+            close(c);
+            return;
+        }
+        write(c, bytes);
+    }
+
+    private void write(Connection c, byte[] bytes) {
+        c.output.add(ByteBuffer.wrap(bytes));
+        c.queuedOutputBytes += bytes.length;
+        try {
+            flush(c);
+        } catch (IOException e) {
+            if (Log.INFO && Log.CONNECTIONS.allow()) {
+                Log.info("Client disconnected: " + e.getMessage());
+            }
+            close(c);
+        }
+    }
+
+    private void flush(Connection c) throws IOException {
+        while (!c.output.isEmpty()) {
+            ByteBuffer buffer = c.output.peek();
+            int before = buffer.remaining();
+            c.channel.write(buffer);
+            Metrics.bytesOut(before - buffer.remaining());
+            c.queuedOutputBytes -= before - buffer.remaining();
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            c.output.poll();
+        }
+        setInterest(c, SelectionKey.OP_WRITE, !c.output.isEmpty());
+        dispatch(c);
+        closeIfDone(c);
+    }
+
+    private void closeIfDone(Connection c) {
+        if (c.closed || c.busy || c.pipelined > 0 || !c.output.isEmpty()) {
+            return;
+        }
+        if (c.closing || (c.inputClosed && c.pending.isEmpty())) {
+            close(c);
+        }
+    }
+
+    private void close(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        connections--;
+        Metrics.disconnected();
+        DictionaryServer.unsubscribe(c.subscriber);
+        c.pending.clear();
+        c.output.clear();
+        c.key.cancel();
+        try { c.channel.close(); } catch (IOException e) { }
+    }
+
+    private void setInterest(Connection c, int op, boolean on) {
+        if (!c.key.isValid()) {
+            return;
+        }
+        int ops = c.key.interestOps();
+        c.key.interestOps(on ? ops | op : ops & ~op);
+    }
+
+    // Run a task on the selector thread
+    private void post(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+}
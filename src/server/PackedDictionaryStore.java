@@ -0,0 +1,425 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+// Compact dictionary storage. Each entry is one UTF-8 record in a large byte page:
+//
+//   word length  word bytes  meaning count  { meaning length  meaning bytes }...
+//
+// with every number a varint. An open-addressing table of record addresses finds the records;
+// the spare high bits of each slot hold a few bits of the word's hash, so most mismatching slots
+// are skipped without touching the record. Records are never changed in place; a change appends a new
+// record and leaves the old one as garbage until the pages are compacted. This keeps a few large
+// arrays on the heap instead of several objects per word, and it lets forEach walk a consistent
+// view without holding the lock.
+class PackedDictionaryStore implements DictionaryStore {
+    private static final int FIRST_PAGE_BYTES = 64 * 1024;
+    private static final int PAGE_BYTES = 4 * 1024 * 1024;
+    private static final int INITIAL_SLOTS = 1024;
+    // A slot holds a hash tag in its top 16 bits and the record address plus one below it. The
+    // address is the page number in bits 32 and up and the offset in the page below that.
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+    private static final long ADDRESS_BITS = (1L << 48) - 1;
+    private static final int MAX_PAGES = 1 << 15;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private byte[][] pages = new byte[16][];
+    private int pageCount;
+    private int pageUsed;        // bytes used in the last page
+    private long[] slots = new long[INITIAL_SLOTS];
+    private int size;
+    private int removedSlots;
+    private long liveBytes;
+    private long garbageBytes;
+    private byte[] scratch = new byte[256]; // record being encoded, used under the write lock
+
+    @Override
+    public List<String> get(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            return slot < 0 ? null : meanings(pages, address(slots[slot]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            return find(key, hash(key)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String word, List<String> meanings) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            if (find(key, hash) >= 0) {
+                return false;
+            }
+            insert(key, hash, meanings);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String word, List<String> meanings) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                replace(slot, key, meanings);
+            } else {
+                insert(key, hash, meanings);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot < 0) {
+                return false;
+            }
+            long length = recordLength(pages, address(slots[slot]));
+            liveBytes -= length;
+            garbageBytes += length;
+            slots[slot] = REMOVED;
+            size--;
+            removedSlots++;
+            compactIfWasteful();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, List<String>> action) {
+        long[] addresses;
+        byte[][] view;
+        lock.readLock().lock();
+        try {
+            addresses = liveAddresses();
+            view = pages.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Records are never modified, so the captured pages can be decoded without the lock
+        for (long address : addresses) {
+            action.accept(word(view, address), meanings(view, address));
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        long[] addresses;
+        byte[][] view;
+        lock.readLock().lock();
+        try {
+            addresses = liveAddresses();
+            view = pages.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<String> keys = new ArrayList<>(addresses.length);
+        for (long address : addresses) {
+            keys.add(word(view, address));
+        }
+        return keys;
+    }
+
+    @Override
+    public long footprintBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 16 + 8L * slots.length + 16 + 4L * pages.length;
+            for (int i = 0; i < pageCount; i++) {
+                bytes += 16 + pages[i].length;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // FNV-1a over the UTF-8 bytes, so a rehash can work from the records without decoding them
+    private static int hash(byte[] bytes, int from, int to) {
+        int h = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] key) {
+        return hash(key, 0, key.length);
+    }
+
+    private static long tag(int hash) {
+        return (long) (hash >>> 16) << 48;
+    }
+
+    private static long address(long slot) {
+        return (slot & ADDRESS_BITS) - 1;
+    }
+
+    // Slot holding the word, or -1
+    private int find(byte[] key, int hash) {
+        int mask = slots.length - 1;
+        long tag = tag(hash);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if (slot != REMOVED && (slot & ~ADDRESS_BITS) == tag && keyEquals(address(slot), key)) {
+                return i;
+            }
+        }
+    }
+
+    private void insert(byte[] key, int hash, List<String> meanings) {
+        if ((size + removedSlots + 1) * 4L > slots.length * 3L) {
+            rehash();
+        }
+        long address = append(key, meanings);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != EMPTY && slots[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == REMOVED) {
+            removedSlots--;
+        }
+        slots[i] = tag(hash) | (address + 1);
+        size++;
+    }
+
+    private void replace(int slot, byte[] key, List<String> meanings) {
+        long old = address(slots[slot]);
+        long length = recordLength(pages, old);
+        long address = append(key, meanings);
+        slots[slot] = (slots[slot] & ~ADDRESS_BITS) | (address + 1);
+        liveBytes -= length;
+        garbageBytes += length;
+        compactIfWasteful();
+    }
+
+    // Encode a record into the pages and return its address
+    private long append(byte[] key, List<String> meanings) {
+        int length = 0;
+        length = putVarint(length, key.length);
+        length = putBytes(length, key);
+        length = putVarint(length, meanings.size());
+        for (String meaning : meanings) {
+            byte[] bytes = meaning.getBytes(StandardCharsets.UTF_8);
+            length = putVarint(length, bytes.length);
+            length = putBytes(length, bytes);
+        }
+        long address = allocate(length);
+        System.arraycopy(scratch, 0, pages[(int) (address >>> 32)], (int) address, length);
+        liveBytes += length;
+        return address;
+    }
+
+    private long allocate(int length) {
+        if (pageCount == 0 || pages[pageCount - 1].length - pageUsed < length) {
+            if (pageCount == MAX_PAGES) {
+                throw new IllegalStateException("Dictionary store is full");
+            }
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pageCount * 2);
+            }
+            // Pages start small and double up to PAGE_BYTES so a small dictionary stays small
+            int pageBytes = pageCount == 0 ? FIRST_PAGE_BYTES : Math.min(PAGE_BYTES, pages[pageCount - 1].length * 2);
+            pages[pageCount++] = new byte[Math.max(pageBytes, length)];
+            pageUsed = 0;
+        }
+        long address = ((long) (pageCount - 1) << 32) | pageUsed;
+        pageUsed += length;
+        return address;
+    }
+
+    private int putVarint(int position, int value) {
+        ensureScratch(position + 5);
+        while ((value & ~0x7f) != 0) {
+            scratch[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        scratch[position++] = (byte) value;
+        return position;
+    }
+
+    private int putBytes(int position, byte[] bytes) {
+        ensureScratch(position + bytes.length);
+        System.arraycopy(bytes, 0, scratch, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private void ensureScratch(int length) {
+        if (scratch.length < length) {
+            scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+        }
+    }
+
+    // Grow the table, dropping the removed markers
+    private void rehash() {
+        int capacity = INITIAL_SLOTS;
+        while (capacity < (size + 1) * 2L) {
+            capacity <<= 1;
+        }
+        long[] oldSlots = slots;
+        slots = new long[capacity];
+        removedSlots = 0;
+        int mask = capacity - 1;
+        for (long slot : oldSlots) {
+            if (slot != EMPTY && slot != REMOVED) {
+                Reader reader = new Reader(pages, address(slot));
+                int length = reader.varint();
+                int i = hash(reader.page, reader.position, reader.position + length) & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = slot;
+            }
+        }
+    }
+
+    // Copy the live records into fresh pages once garbage outweighs them. The old pages are left
+    // untouched for any forEach still reading them.
+    private void compactIfWasteful() {
+        if (garbageBytes < PAGE_BYTES || garbageBytes < liveBytes) {
+            return;
+        }
+        byte[][] oldPages = pages;
+        pages = new byte[16][];
+        pageCount = 0;
+        pageUsed = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != EMPTY && slots[i] != REMOVED) {
+                long old = address(slots[i]);
+                int length = recordLength(oldPages, old);
+                long address = allocate(length);
+                System.arraycopy(oldPages[(int) (old >>> 32)], (int) old, pages[(int) (address >>> 32)], (int) address, length);
+                slots[i] = (slots[i] & ~ADDRESS_BITS) | (address + 1);
+            }
+        }
+        garbageBytes = 0;
+    }
+
+    private long[] liveAddresses() {
+        long[] addresses = new long[size];
+        int n = 0;
+        for (long slot : slots) {
+            if (slot != EMPTY && slot != REMOVED) {
+                addresses[n++] = address(slot);
+            }
+        }
+        return addresses;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        Reader reader = new Reader(pages, address);
+        int length = reader.varint();
+        return length == key.length
+                && Arrays.equals(reader.page, reader.position, reader.position + length, key, 0, length);
+    }
+
+    private static String word(byte[][] pages, long address) {
+        return new Reader(pages, address).string();
+    }
+
+    private static List<String> meanings(byte[][] pages, long address) {
+        Reader reader = new Reader(pages, address);
+        reader.skip();
+        int n = reader.varint();
+        List<String> meanings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            meanings.add(reader.string());
+        }
+        return meanings;
+    }
+
+    private static int recordLength(byte[][] pages, long address) {
+        Reader reader = new Reader(pages, address);
+        reader.skip();
+        int n = reader.varint();
+        for (int i = 0; i < n; i++) {
+            reader.skip();
+        }
+        return reader.position - (int) address;
+    }
+
+    // Reads the fields of one record
+    private static class Reader {
+        final byte[] page;
+        int position;
+
+        Reader(byte[][] pages, long address) {
+            this.page = pages[(int) (address >>> 32)];
+            this.position = (int) address;
+        }
+
+        int varint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = page[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        String string() {
+            int length = varint();
+            String s = new String(page, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        void skip() {
+            int length = varint();
+            position += length;
+        }
+    }
+}
@@ -0,0 +1,939 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Reads request lines and writes response lines of the wire protocol, in UTF-8, without going
+// through a String of the whole line or Gson's reflection.
+// Requests are parsed straight from the line's bytes. Plain JSON, which is what clients send, is
+// read by a small parser that only allocates the message and its field values. Anything it does
+// not handle (single quotes, unquoted names, comments and the rest of what lenient Gson accepts)
+// is parsed again with Gson's streaming JsonReader, so every line means what it meant before.
+// Responses are written into a per-thread byte buffer that is reused from one response to the
+// next, escaped exactly as Gson escapes them.
+final class ProtocolCodec {
+    // Requests nested deeper than this, through batch items or otherwise, are rejected
+    private static final int MAX_DEPTH = 64;
+    private static final ThreadLocal<Utf8Reader> readers = ThreadLocal.withInitial(Utf8Reader::new);
+    private static final ThreadLocal<ByteWriter> writers = ThreadLocal.withInitial(ByteWriter::new);
+    // Thrown by the fast parser to hand the line over to JsonReader; shared, so it has no stack trace
+    private static final RuntimeException FALLBACK = new RuntimeException("fallback", null, false, false) {
+    };
+    private static final byte[][] FIELDS = {
+        bytes("id"), bytes("type"), bytes("word"), bytes("meanings"), bytes("meaning"),
+        bytes("oldMeaning"), bytes("newMeaning"), bytes("items"), bytes("limit"), bytes("mode"),
+        bytes("ranges")
+    };
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    private ProtocolCodec() {
+    }
+
+    // The request on the line, or null if the line is empty or not a JSON request object
+    static DictionaryServer.RequestMessage decodeRequest(byte[] bytes, int offset, int length) {
+        try {
+            return new RequestParser(bytes, offset, offset + length).parse();
+        } catch (RuntimeException e) {
+            if (e != FALLBACK) {
+                throw e;
+            }
+            return decodeLenient(bytes, offset, length);
+        }
+    }
+
+    // The response as a line, with its line terminator
+    static byte[] encodeResponse(DictionaryServer.ResponseMessage res) {
+        ByteWriter out = writers.get();
+        out.reset();
+        writeResponse(out, res);
+        out.write('\n');
+        return out.toByteArray(0);
+    }
+
+    // The response without its opening brace or line terminator, for withId to complete. Used for
+    // cached responses, which are shared by requests with different ids.
+    static byte[] encodeBody(DictionaryServer.ResponseMessage res) {
+        ByteWriter out = writers.get();
+        out.reset();
+        writeResponse(out, res);
+        return out.toByteArray(1);
+    }
+
+    // A response line made of the id, if there is one, and a body from encodeBody
+    static byte[] withId(String id, byte[] body) {
+        ByteWriter out = writers.get();
+        out.reset();
+        out.write('{');
+        if (id != null) {
+            out.name("id", true);
+            out.string(id);
+            if (body.length > 1) {
+                out.write(',');     // unless the body is only the closing brace
+            }
+        }
+        out.write(body);
+        out.write('\n');
+        return out.toByteArray(0);
+    }
+
+    // The line pushed to subscribers when a word changes, with its line terminator. It has a type
+    // and no status, so clients can tell it from a response.
+    static byte[] encodeInvalidation(String word) {
+        ByteWriter out = writers.get();
+        out.reset();
+        out.write('{');
+        out.name("type", true);
+        out.string("invalidate");
+        out.name("word", false);
+        out.string(word);
+        out.write('}');
+        out.write('\n');
+        return out.toByteArray(0);
+    }
+
+    // Fields in declaration order, nulls left out, as Gson writes them
+    private static void writeResponse(ByteWriter out, DictionaryServer.ResponseMessage res) {
+        out.write('{');
+        boolean first = true;
+        if (res.id != null) {
+            first = out.name("id", first);
+            out.string(res.id);
+        }
+        if (res.status != null) {
+            first = out.name("status", first);
+            out.string(res.status);
+        }
+        if (res.message != null) {
+            first = out.name("message", first);
+            out.string(res.message);
+        }
+        if (res.data != null) {
+            first = out.name("data", first);
+            out.write('[');
+            for (int i = 0; i < res.data.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.string(res.data.get(i));
+            }
+            out.write(']');
+        }
+        if (res.results != null) {
+            first = out.name("results", first);
+            out.write('[');
+            for (int i = 0; i < res.results.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                DictionaryServer.ResponseMessage result = res.results.get(i);
+                if (result == null) {
+                    out.ascii("null");
+                } else {
+                    writeResponse(out, result);
+                }
+            }
+            out.write(']');
+        }
+        if (res.stats != null) {
+            out.name("stats", first);
+            out.write('{');
+            boolean firstStat = true;
+            for (Map.Entry<String, Long> entry : res.stats.entrySet()) {
+                if (entry.getValue() != null) {
+                    firstStat = out.name(entry.getKey(), firstStat);
+                    out.ascii(Long.toString(entry.getValue()));
+                }
+            }
+            out.write('}');
+        }
+        out.write('}');
+    }
+
+    private static DictionaryServer.RequestMessage decodeLenient(byte[] bytes, int offset, int length) {
+        Utf8Reader in = readers.get();
+        in.reset(bytes, offset, length);
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        try {
+            if (reader.peek() == JsonToken.NULL) {
+                return null;
+            }
+            DictionaryServer.RequestMessage req = readRequest(reader, 1);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+            return req;
+        } catch (EOFException e) {
+            return null;                    // nothing but whitespace
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return null;
+        } finally {
+            in.reset(null, 0, 0);
+        }
+    }
+
+    // Batch items nest a request in a request, so the depth is counted to keep a line of many
+    // nested "items" from overflowing the stack
+    private static DictionaryServer.RequestMessage readRequest(JsonReader reader, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("Request nested too deeply");
+        }
+        DictionaryServer.RequestMessage req = new DictionaryServer.RequestMessage();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    req.id = readString(reader);
+                    break;
+                case "type":
+                    req.type = readString(reader);
+                    break;
+                case "word":
+                    req.word = readString(reader);
+                    break;
+                case "meanings":
+                    req.meanings = readStrings(reader);
+                    break;
+                case "meaning":
+                    req.meaning = readString(reader);
+                    break;
+                case "oldMeaning":
+                    req.oldMeaning = readString(reader);
+                    break;
+                case "newMeaning":
+                    req.newMeaning = readString(reader);
+                    break;
+                case "items":
+                    req.items = readItems(reader, depth);
+                    break;
+                case "limit":
+                    req.limit = readInteger(reader);
+                    break;
+                case "mode":
+                    req.mode = readString(reader);
+                    break;
+                case "ranges":
+                    req.ranges = readStrings(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return req;
+    }
+
+    // Strings, numbers and booleans all read as a string, as Gson does for a String field
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NULL:
+                reader.nextNull();
+                return null;
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            default:
+                throw new IllegalStateException("Expected a string");
+        }
+    }
+
+    private static Integer readInteger(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<String> strings = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            strings.add(readString(reader));
+        }
+        reader.endArray();
+        return strings;
+    }
+
+    private static List<DictionaryServer.RequestMessage> readItems(JsonReader reader, int depth) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<DictionaryServer.RequestMessage> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                items.add(null);
+            } else {
+                items.add(readRequest(reader, depth + 1));
+            }
+        }
+        reader.endArray();
+        return items;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Parser for strict JSON request objects. It throws FALLBACK at anything it is not sure about,
+    // including every syntax error and nesting past MAX_DEPTH, so that the JsonReader path has the
+    // last word on those lines. That path skips unknown values without recursing, and rejects
+    // requests nested past MAX_DEPTH.
+    private static class RequestParser {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+        private int depth;
+
+        RequestParser(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        DictionaryServer.RequestMessage parse() {
+            DictionaryServer.RequestMessage req = object();
+            skipWhitespace();
+            if (position != end) {
+                throw FALLBACK;
+            }
+            return req;
+        }
+
+        private DictionaryServer.RequestMessage object() {
+            if (++depth > MAX_DEPTH) {
+                throw FALLBACK;
+            }
+            DictionaryServer.RequestMessage req = new DictionaryServer.RequestMessage();
+            expect('{');
+            if (peek() == '}') {
+                position++;
+                depth--;
+                return req;
+            }
+            while (true) {
+                int field = name();
+                expect(':');
+                switch (field) {
+                    case 0:
+                        req.id = string();
+                        break;
+                    case 1:
+                        req.type = string();
+                        break;
+                    case 2:
+                        req.word = string();
+                        break;
+                    case 3:
+                        req.meanings = strings();
+                        break;
+                    case 4:
+                        req.meaning = string();
+                        break;
+                    case 5:
+                        req.oldMeaning = string();
+                        break;
+                    case 6:
+                        req.newMeaning = string();
+                        break;
+                    case 7:
+                        req.items = items();
+                        break;
+                    case 8:
+                        req.limit = integer();
+                        break;
+                    case 9:
+                        req.mode = string();
+                        break;
+                    case 10:
+                        req.ranges = strings();
+                        break;
+                    default:
+                        skipValue();
+                }
+                int c = next();
+                if (c == '}') {
+                    depth--;
+                    return req;
+                }
+                if (c != ',') {
+                    throw FALLBACK;
+                }
+            }
+        }
+
+        // Index of the field in FIELDS, or -1 for a field the request does not have
+        private int name() {
+            expect('"');
+            int start = position;
+            while (position < end && bytes[position] != '"') {
+                if (bytes[position] == '\\') {
+                    throw FALLBACK;
+                }
+                position++;
+            }
+            if (position == end) {
+                throw FALLBACK;
+            }
+            int length = position - start;
+            position++;
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (FIELDS[i].length == length
+                        && Arrays.equals(FIELDS[i], 0, length, bytes, start, start + length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // A string, number or boolean as a string, or null
+        private String string() {
+            int c = peek();
+            if (c == '"') {
+                position++;
+                return quoted();
+            }
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                int start = position;
+                number();
+                return new String(bytes, start, position - start, StandardCharsets.ISO_8859_1);
+            }
+            if (literal("true")) {
+                return "true";
+            }
+            if (literal("false")) {
+                return "false";
+            }
+            if (literal("null")) {
+                return null;
+            }
+            throw FALLBACK;
+        }
+
+        // The rest of a string whose opening quote has been read
+        private String quoted() {
+            int start = position;
+            while (position < end) {
+                int b = bytes[position];
+                if (b == '"') {
+                    String s = new String(bytes, start, position - start, StandardCharsets.UTF_8);
+                    position++;
+                    return s;
+                }
+                if (b == '\\') {
+                    return escaped(start);
+                }
+                if (b >= 0 && b < 0x20) {
+                    throw FALLBACK;
+                }
+                position++;
+            }
+            throw FALLBACK;
+        }
+
+        // A string with escapes; the plain runs between them are decoded as a whole
+        private String escaped(int start) {
+            StringBuilder s = new StringBuilder();
+            int run = start;
+            while (position < end) {
+                int b = bytes[position];
+                if (b == '"') {
+                    s.append(new String(bytes, run, position - run, StandardCharsets.UTF_8));
+                    position++;
+                    return s.toString();
+                }
+                if (b >= 0 && b < 0x20) {
+                    throw FALLBACK;
+                }
+                if (b != '\\') {
+                    position++;
+                    continue;
+                }
+                s.append(new String(bytes, run, position - run, StandardCharsets.UTF_8));
+                if (position + 1 >= end) {
+                    throw FALLBACK;
+                }
+                int e = bytes[position + 1];
+                position += 2;
+                switch (e) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        s.append((char) e);
+                        break;
+                    case 'b':
+                        s.append('\b');
+                        break;
+                    case 'f':
+                        s.append('\f');
+                        break;
+                    case 'n':
+                        s.append('\n');
+                        break;
+                    case 'r':
+                        s.append('\r');
+                        break;
+                    case 't':
+                        s.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > end) {
+                            throw FALLBACK;
+                        }
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(bytes[position++], 16);
+                            if (digit < 0) {
+                                throw FALLBACK;
+                            }
+                            value = value * 16 + digit;
+                        }
+                        s.append((char) value);
+                        break;
+                    default:
+                        throw FALLBACK;
+                }
+                run = position;
+            }
+            throw FALLBACK;
+        }
+
+        // -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+        private void number() {
+            if (peekByte() == '-') {
+                position++;
+            }
+            if (peekByte() == '0') {
+                position++;
+            } else if (digits() == 0) {
+                throw FALLBACK;
+            }
+            if (peekByte() == '.') {
+                position++;
+                if (digits() == 0) {
+                    throw FALLBACK;
+                }
+            }
+            if (peekByte() == 'e' || peekByte() == 'E') {
+                position++;
+                if (peekByte() == '+' || peekByte() == '-') {
+                    position++;
+                }
+                if (digits() == 0) {
+                    throw FALLBACK;
+                }
+            }
+            // A number must end where a value ends, or JsonReader would read it as an unquoted string
+            if (!endOfValue(peekByte())) {
+                throw FALLBACK;
+            }
+        }
+
+        private int digits() {
+            int start = position;
+            while (position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+                position++;
+            }
+            return position - start;
+        }
+
+        // Only small plain integers; anything else is converted the way JsonReader does it
+        private Integer integer() {
+            if (literal("null")) {
+                return null;
+            }
+            boolean negative = peekByte() == '-';
+            if (negative) {
+                position++;
+            }
+            int count = digits();
+            if (count == 0 || count > 9 || (count > 1 && bytes[position - count] == '0') || !endOfValue(peekByte())) {
+                throw FALLBACK;
+            }
+            int value = 0;
+            for (int i = position - count; i < position; i++) {
+                value = value * 10 + (bytes[i] - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        private List<String> strings() {
+            if (literal("null")) {
+                return null;
+            }
+            List<String> strings = new ArrayList<>();
+            expect('[');
+            if (peek() == ']') {
+                position++;
+                return strings;
+            }
+            while (true) {
+                strings.add(string());
+                int c = next();
+                if (c == ']') {
+                    return strings;
+                }
+                if (c != ',') {
+                    throw FALLBACK;
+                }
+            }
+        }
+
+        private List<DictionaryServer.RequestMessage> items() {
+            if (literal("null")) {
+                return null;
+            }
+            List<DictionaryServer.RequestMessage> items = new ArrayList<>();
+            expect('[');
+            if (peek() == ']') {
+                position++;
+                return items;
+            }
+            while (true) {
+                items.add(literal("null") ? null : object());
+                int c = next();
+                if (c == ']') {
+                    return items;
+                }
+                if (c != ',') {
+                    throw FALLBACK;
+                }
+            }
+        }
+
+        private void skipValue() {
+            int c = peek();
+            if (c != '{' && c != '[') {
+                string();
+                return;
+            }
+            if (++depth > MAX_DEPTH) {
+                throw FALLBACK;
+            }
+            position++;
+            int close = c == '{' ? '}' : ']';
+            if (peek() == close) {
+                position++;
+                depth--;
+                return;
+            }
+            while (true) {
+                if (c == '{') {
+                    name();
+                    expect(':');
+                }
+                skipValue();
+                int n = next();
+                if (n == close) {
+                    depth--;
+                    return;
+                }
+                if (n != ',') {
+                    throw FALLBACK;
+                }
+            }
+        }
+
+        // Consumes the word if it is next
+        private boolean literal(String word) {
+            skipWhitespace();
+            int length = word.length();
+            if (end - position < length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[position + i] != word.charAt(i)) {
+                    return false;
+                }
+            }
+            if (!endOfValue(position + length < end ? bytes[position + length] : -1)) {
+                throw FALLBACK;
+            }
+            position += length;
+            return true;
+        }
+
+        private static boolean endOfValue(int c) {
+            return c == -1 || c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+
+        private void expect(int c) {
+            if (next() != c) {
+                throw FALLBACK;
+            }
+        }
+
+        // The next byte that is not whitespace, consumed
+        private int next() {
+            int c = peek();
+            position++;
+            return c;
+        }
+
+        // The next byte that is not whitespace, or -1 at the end
+        private int peek() {
+            skipWhitespace();
+            return position < end ? bytes[position] : -1;
+        }
+
+        private int peekByte() {
+            return position < end ? bytes[position] : -1;
+        }
+
+        private void skipWhitespace() {
+            while (position < end) {
+                int b = bytes[position];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return;
+                }
+                position++;
+            }
+        }
+    }
+
+    // Decodes UTF-8 bytes for a JsonReader. Malformed sequences become U+FFFD, as in new String(bytes, UTF_8).
+    private static class Utf8Reader extends Reader {
+        private byte[] bytes;
+        private int position;
+        private int end;
+        private char pendingLow;           // second half of a surrogate pair that did not fit
+
+        void reset(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+            this.pendingLow = 0;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int n = 0;
+            if (pendingLow != 0 && length > 0) {
+                buffer[offset + n++] = pendingLow;
+                pendingLow = 0;
+            }
+            while (n < length && position < end) {
+                int b = bytes[position];
+                if (b >= 0) {
+                    buffer[offset + n++] = (char) b;
+                    position++;
+                    continue;
+                }
+                int codePoint = decode();
+                if (codePoint < 0x10000) {
+                    buffer[offset + n++] = (char) codePoint;
+                } else {
+                    buffer[offset + n++] = Character.highSurrogate(codePoint);
+                    if (n < length) {
+                        buffer[offset + n++] = Character.lowSurrogate(codePoint);
+                    } else {
+                        pendingLow = Character.lowSurrogate(codePoint);
+                    }
+                }
+            }
+            return n == 0 && length > 0 ? -1 : n;
+        }
+
+        // One multi-byte sequence, or U+FFFD for an invalid one, consuming the same bytes as the JDK's decoder
+        private int decode() {
+            int b = bytes[position] & 0xff;
+            int length;
+            int min;
+            int codePoint;
+            if (b >= 0xc2 && b <= 0xdf) {
+                length = 2;
+                min = 0x80;
+                codePoint = b & 0x1f;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                length = 3;
+                min = 0x800;
+                codePoint = b & 0x0f;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                length = 4;
+                min = 0x10000;
+                codePoint = b & 0x07;
+            } else {
+                position++;
+                return 0xfffd;
+            }
+            position++;
+            for (int i = 1; i < length; i++) {
+                if (position == end || (bytes[position] & 0xc0) != 0x80) {
+                    return 0xfffd;
+                }
+                int next = (codePoint << 6) | (bytes[position] & 0x3f);
+                // Overlong forms and values past U+10FFFF are rejected at the first byte that shows it
+                if (i == 1 && ((length == 3 && next < 0x20) || (length == 4 && (next < 0x10 || next > 0x10f)))) {
+                    return 0xfffd;
+                }
+                codePoint = next;
+                position++;
+            }
+            return codePoint >= min && (codePoint < 0xd800 || codePoint > 0xdfff) ? codePoint : 0xfffd;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Growable byte buffer that JSON text is written into as UTF-8
+    private static class ByteWriter {
+        private byte[] buffer = new byte[4096];
+        private int size;
+
+        void reset() {
+            size = 0;
+            // Let a buffer grown by one huge response go again
+            if (buffer.length > 1 << 20) {
+                buffer = new byte[4096];
+            }
+        }
+
+        byte[] toByteArray(int from) {
+            return Arrays.copyOfRange(buffer, from, size);
+        }
+
+        void write(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buffer[size++] = (byte) s.charAt(i);
+            }
+        }
+
+        // A field name and its colon, after a comma unless it is the first field. Returns false,
+        // the next value of `first`.
+        boolean name(String name, boolean first) {
+            if (!first) {
+                write(',');
+            }
+            string(name);
+            write(':');
+            return false;
+        }
+
+        // A quoted string, or null, with the escapes of Gson's HTML-safe JsonWriter. Unpaired
+        // surrogates become '?', as String.getBytes writes them.
+        void string(String s) {
+            if (s == null) {
+                ascii("null");
+                return;
+            }
+            int length = s.length();
+            ensure(length * 6 + 2);
+            buffer[size++] = '"';
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            buffer[size++] = '\\';
+                            buffer[size++] = (byte) c;
+                            break;
+                        case '\t':
+                            buffer[size++] = '\\';
+                            buffer[size++] = 't';
+                            break;
+                        case '\b':
+                            buffer[size++] = '\\';
+                            buffer[size++] = 'b';
+                            break;
+                        case '\n':
+                            buffer[size++] = '\\';
+                            buffer[size++] = 'n';
+                            break;
+                        case '\r':
+                            buffer[size++] = '\\';
+                            buffer[size++] = 'r';
+                            break;
+                        case '\f':
+                            buffer[size++] = '\\';
+                            buffer[size++] = 'f';
+                            break;
+                        case '<':
+                        case '>':
+                        case '&':
+                        case '=':
+                        case '\'':
+                            unicodeEscape(c);
+                            break;
+                        default:
+                            if (c < 0x20) {
+                                unicodeEscape(c);
+                            } else {
+                                buffer[size++] = (byte) c;
+                            }
+                    }
+                } else if (c < 0x800) {
+                    buffer[size++] = (byte) (0xc0 | (c >> 6));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3f));
+                } else if (c == 0x2028 || c == 0x2029) {
+                    unicodeEscape(c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[size++] = '?';
+                } else {
+                    buffer[size++] = (byte) (0xe0 | (c >> 12));
+                    buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[size++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            buffer[size++] = '"';
+        }
+
+        private void unicodeEscape(char c) {
+            buffer[size++] = '\\';
+            buffer[size++] = 'u';
+            buffer[size++] = HEX[c >> 12];
+            buffer[size++] = HEX[(c >> 8) & 0xf];
+            buffer[size++] = HEX[(c >> 4) & 0xf];
+            buffer[size++] = HEX[c & 0xf];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The replica's side of replication: follows a primary's replication port (see ReplicationSource)
+// and applies what it sends to this server's dictionary. Each time it connects it takes a fresh
+// snapshot, and once that is complete, drops the words the primary no longer has. A lost primary
+// is reconnected to in the background, waiting twice as long after each failed attempt.
+// The replica is current while it is synced and a heartbeat, which the primary only sends once
+// every earlier change has gone out, arrived within maxLagMs. Otherwise its answers could be too
+// old, so reads are refused and clients go to the primary instead.
+class Replica {
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5_000;
+    // A primary that sends nothing, not even heartbeats, for this long is treated as gone
+    private static final int READ_TIMEOUT_MS = 10_000;
+
+    private static final Gson gson = new Gson();
+
+    private final String host;
+    private final int port;
+    private final long maxLagNanos;
+    private volatile boolean synced;
+    private volatile long caughtUpAt = System.nanoTime();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+
+    // primary is "host:port"
+    Replica(String primary, long maxLagMs) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Primary must be host:port, not " + primary);
+        }
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMs);
+    }
+
+    void start() {
+        Thread follower = new Thread(this::followForever, "replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    // Whether reads may be answered from this replica
+    boolean current() {
+        return synced && System.nanoTime() - caughtUpAt <= maxLagNanos;
+    }
+
+    // Time since the replica was last known to have every change the primary had made
+    long lagMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpAt);
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("replica.synced", synced ? 1L : 0L);
+        stats.put("replica.current", current() ? 1L : 0L);
+        stats.put("replica.lagMs", lagMs());
+        stats.put("replica.applied", applied.sum());
+        stats.put("replica.resyncs", resyncs.sum());
+    }
+
+    private void followForever() {
+        long backoffMs = MIN_BACKOFF_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), READ_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                Log.info("Replicating from " + host + ":" + port);
+                backoffMs = MIN_BACKOFF_MS;
+                follow(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+                Log.warn("Primary closed the replication stream");
+            } catch (IOException e) {
+                Log.warn("Cannot replicate from " + host + ":" + port + ": " + e.getMessage());
+            }
+            synced = false;
+            long delay = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(BufferedReader in) throws IOException {
+        resyncs.increment();
+        Set<String> snapshot = new HashSet<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            WriteAheadLog.Record record;
+            try {
+                record = gson.fromJson(line, WriteAheadLog.Record.class);
+            } catch (JsonSyntaxException e) {
+                throw new IOException("Bad replication record: " + e.getMessage());
+            }
+            if (record == null || record.op == null) {
+                continue;
+            }
+            switch (record.op) {
+                case "heartbeat":
+                    caughtUpAt = System.nanoTime();
+                    break;
+                case "snapshot":
+                    snapshot.add(record.word);
+                    DictionaryServer.applyReplicated(record.word, record.meanings);
+                    applied.increment();
+                    break;
+                case "synced":
+                    int dropped = DictionaryServer.retainReplicated(snapshot);
+                    Log.info("Replica synced: " + snapshot.size() + " entries, " + dropped + " removed");
+                    snapshot = null;
+                    caughtUpAt = System.nanoTime();
+                    synced = true;
+                    break;
+                case "remove":
+                    DictionaryServer.applyReplicated(record.word, null);
+                    applied.increment();
+                    break;
+                default:
+                    if (record.meanings != null) {
+                        DictionaryServer.applyReplicated(record.word, record.meanings);
+                        applied.increment();
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import com.google.gson.Gson;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+// The primary's side of replication. Each replica that connects to the replication port gets the
+// whole dictionary, then every change as it is made, as lines of change log records (see
+// WriteAheadLog.Record):
+//   {"op":"snapshot","word":...,"meanings":[...]}   an entry of the dictionary
+//   {"op":"synced"}                                 the snapshot is complete
+//   {"op":"add"|"update"|"addmeaning","word":...,"meanings":[...]}, {"op":"remove","word":...}
+//   {"op":"heartbeat"}                              every earlier change has been sent
+// The replica is registered for changes before the snapshot starts, so a change made during it is
+// sent afterwards. Records hold the word's whole state, so applying one again does no harm.
+// Changes are queued per replica and written by its own thread, so a slow replica never holds up a
+// write; one that lets REPLICATION_MAX_QUEUED build up is disconnected and starts over. That limit
+// only applies once the snapshot is sent: changes made while it streams are buffered without one,
+// or a big dictionary with steady writes would never finish a snapshot.
+class ReplicationSource {
+    // Longest time without a heartbeat while the replica is caught up
+    static final long HEARTBEAT_MS = 100;
+
+    private static final Gson gson = new Gson();
+    private static final byte[] SYNCED = line("synced", null, null);
+    private static final byte[] HEARTBEAT = line("heartbeat", null, null);
+
+    private final DictionaryStore dictionary;
+    private final Set<Follower> followers = new CopyOnWriteArraySet<>();
+
+    ReplicationSource(DictionaryStore dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    void start(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Log.info("Replica connected: " + socket.getRemoteSocketAddress());
+                    Thread follower = new Thread(new Follower(socket)::run, "replication-" + socket.getRemoteSocketAddress());
+                    follower.setDaemon(true);
+                    follower.start();
+                } catch (IOException e) {
+                    Log.error("Replication port failed", e);
+                    return;
+                }
+            }
+        }, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Replication served on port " + port);
+    }
+
+    // Called under the word's lock after every change, with the word's meanings after it
+    void publish(String op, String word, List<String> meanings) {
+        if (followers.isEmpty()) {
+            return;
+        }
+        byte[] line = line(op, word, meanings);
+        for (Follower follower : followers) {
+            follower.offer(line);
+        }
+    }
+
+    int replicas() {
+        return followers.size();
+    }
+
+    private static byte[] line(String op, String word, List<String> meanings) {
+        WriteAheadLog.Record record = new WriteAheadLog.Record();
+        record.op = op;
+        record.word = word;
+        record.meanings = meanings;
+        return (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Follower {
+        private final Socket socket;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(ServerConfig.REPLICATION_MAX_QUEUED);
+        // Changes made before the snapshot and its buffered changes were sent; null after that
+        private List<byte[]> buffered = new ArrayList<>();
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        void offer(byte[] line) {
+            synchronized (this) {
+                if (buffered != null) {
+                    buffered.add(line);
+                    return;
+                }
+            }
+            if (!queue.offer(line)) {
+                Log.warn("Replica disconnected: too far behind, " + socket.getRemoteSocketAddress());
+                try { socket.close(); } catch (IOException e) { }
+            }
+        }
+
+        void run() {
+            followers.add(this);
+            try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+                try {
+                    dictionary.forEach((word, meanings) -> {
+                        try {
+                            out.write(line("snapshot", word, meanings));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.write(SYNCED);
+                // Changes keep arriving while the buffer is written, so it is swapped out until
+                // one comes back empty
+                while (true) {
+                    List<byte[]> lines;
+                    synchronized (this) {
+                        lines = buffered;
+                        buffered = lines.isEmpty() ? null : new ArrayList<>();
+                    }
+                    if (lines.isEmpty()) {
+                        break;
+                    }
+                    for (byte[] line : lines) {
+                        out.write(line);
+                    }
+                }
+                long lastHeartbeat = 0;
+                while (true) {
+                    byte[] line = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if (line != null) {
+                        out.write(line);
+                    }
+                    // A heartbeat only goes out once everything queued before it has been written
+                    if (queue.isEmpty()) {
+                        long now = System.nanoTime();
+                        if (line == null || now - lastHeartbeat >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS)) {
+                            out.write(HEARTBEAT);
+                            lastHeartbeat = now;
+                        }
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                Log.info("Replica disconnected: " + socket.getRemoteSocketAddress() + ", " + e.getMessage());
+            } catch (InterruptedException e) {
+                // Shutting down
+            } finally {
+                followers.remove(this);
+                try { socket.close(); } catch (IOException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Ready-to-send query responses for the most requested words, so a hit skips the store lookup
+// and the JSON encoding. Entries are kept in least recently used order within a byte budget.
+// A new entry only pushes out the least recently used ones if its word has been asked for more
+// often lately than each of them (TinyLFU admission): a burst of one-off queries then cannot flush
+// the popular words. Writes invalidate the word. A query that read the dictionary before a write
+// to its word does not get to cache what it read, because every write also bumps a stamp the
+// query checks.
+// The cache is split by word hash into segments, each with its own lock, share of the budget and
+// recency order, so queries for different words rarely wait on each other. The frequency sketch
+// and the stamps are shared and lock-free.
+class ResponseCache {
+    private static final int STRIPES = 1024;
+    private static final int MAX_SEGMENTS = 64;
+    // Smallest share of the budget worth giving a segment of its own
+    private static final long MIN_SEGMENT_BYTES = 64 * 1024;
+    // Every entry costs this much on top of its bytes: the map node, the key string and the array header
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final Segment[] segments;
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final FrequencySketch frequencies;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        int count = (int) Math.min(MAX_SEGMENTS, Math.max(1, Long.highestOneBit(maxBytes / MIN_SEGMENT_BYTES)));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+        // About one counter per 512 bytes of budget, a few per entry the budget can hold
+        this.frequencies = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, maxBytes / 512)));
+    }
+
+    boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    // The cached response body for the word, or null
+    byte[] get(String word) {
+        frequencies.increment(word);
+        byte[] body = segment(word).get(word);
+        if (body == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return body;
+    }
+
+    // Taken before the dictionary is read; put only caches the result if the word has not been
+    // written since
+    long stamp(String word) {
+        return stamps.get(stripe(word));
+    }
+
+    void put(String word, long stamp, byte[] body) {
+        segment(word).put(word, stamp, body);
+    }
+
+    // Called after every change to the word. The stamp is bumped under the segment's lock, so a
+    // put that checked the old stamp has either finished, and its entry is removed here, or has
+    // not started.
+    void invalidate(String word) {
+        segment(word).invalidate(word);
+    }
+
+    Map<String, Long> stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                bytes += segment.bytes;
+            }
+        }
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("cache.hits", hits.sum());
+        stats.put("cache.misses", misses.sum());
+        stats.put("cache.evictions", evictions.sum());
+        stats.put("cache.rejections", rejections.sum());
+        stats.put("cache.entries", entries);
+        stats.put("cache.bytes", bytes);
+        stats.put("cache.maxBytes", maxBytes);
+        return stats;
+    }
+
+    private Segment segment(String word) {
+        // Every word of a stamp stripe is in the same segment
+        return segments[stripe(word) & (segments.length - 1)];
+    }
+
+    private static int stripe(String word) {
+        int h = word.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(String word) {
+            return entries.get(word);
+        }
+
+        synchronized void put(String word, long stamp, byte[] body) {
+            long size = body.length + ENTRY_OVERHEAD;
+            if (stamps.get(stripe(word)) != stamp || size > maxBytes || entries.containsKey(word)) {
+                return;
+            }
+            // Find the least recently used entries that must go to make room. If any of them is
+            // asked for as often as the new word, nothing is evicted and the word is not cached.
+            int frequency = frequencies.frequency(word);
+            long freed = 0;
+            int victims = 0;
+            for (Map.Entry<String, byte[]> victim : entries.entrySet()) {
+                if (bytes - freed + size <= maxBytes) {
+                    break;
+                }
+                if (frequencies.frequency(victim.getKey()) >= frequency) {
+                    rejections.increment();
+                    return;
+                }
+                freed += victim.getValue().length + ENTRY_OVERHEAD;
+                victims++;
+            }
+            Iterator<byte[]> eldest = entries.values().iterator();
+            for (int i = 0; i < victims; i++) {
+                eldest.next();
+                eldest.remove();
+            }
+            evictions.add(victims);
+            entries.put(word, body);
+            bytes += size - freed;
+        }
+
+        synchronized void invalidate(String word) {
+            stamps.incrementAndGet(stripe(word));
+            byte[] body = entries.remove(word);
+            if (body != null) {
+                bytes -= body.length + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    // Count-min sketch of how often each word was asked for, with four 4-bit counters per word.
+    // All counters are halved once the number of increments reaches ten times the table size, so
+    // the counts follow what is popular now. Counters are updated with compare-and-set, so queries
+    // never lock; a halving that overlaps increments may lose a few of them, which only blurs the
+    // estimate.
+    private static class FrequencySketch {
+        private final AtomicLongArray table;
+        private final int mask;
+        private final int resetAt;
+        private final AtomicInteger increments = new AtomicInteger();
+
+        FrequencySketch(int counters) {
+            int words = Integer.highestOneBit(Math.max(16, counters / 16));
+            table = new AtomicLongArray(words);
+            mask = words - 1;
+            resetAt = words * 16 * 10;
+        }
+
+        void increment(String word) {
+            int h = spread(word.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(index(h, i), counter(h, i));
+            }
+            if (added && increments.incrementAndGet() == resetAt) {
+                reset();
+            }
+        }
+
+        int frequency(String word) {
+            int h = spread(word.hashCode());
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                min = Math.min(min, (int) (table.get(index(h, i)) >>> (counter(h, i) << 2)) & 0xf);
+            }
+            return min;
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int shift = counter << 2;
+            while (true) {
+                long value = table.get(index);
+                if (((value >>> shift) & 0xf) == 0xf) {
+                    return false;
+                }
+                if (table.compareAndSet(index, value, value + (1L << shift))) {
+                    return true;
+                }
+            }
+        }
+
+        // Only the thread whose increment reached resetAt runs this
+        private void reset() {
+            for (int i = 0; i < table.length(); i++) {
+                table.getAndUpdate(i, value -> (value >>> 1) & 0x7777777777777777L);
+            }
+            increments.addAndGet(-resetAt / 2);
+        }
+
+        // Each of the four rows picks its own slot from a different rehash of the word's hash
+        private int index(int h, int row) {
+            int x = (h + row * 0x9e3779b9) * 0x85ebca6b;
+            return (x ^ (x >>> 15)) & mask;
+        }
+
+        private static int counter(int h, int row) {
+            return ((h >>> (row << 3)) & 3) + (row << 2);
+        }
+
+        private static int spread(int h) {
+            h *= 0xcc9e2d51;
+            return h ^ (h >>> 17);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+// Server tuning options. They are read from -Ddictionary.* system properties so the
+// command line stays "<port> <dictionary-file>".
+final class ServerConfig {
+    // Connection engine: "nio" (selector + worker pool), "virtual" (virtual thread per connection)
+    // or "thread" (platform thread per connection)
+    static final String ENGINE = System.getProperty("dictionary.engine", "nio");
+    // Dictionary storage: "heap" (map of strings and lists) or "packed" (UTF-8 records in large byte pages)
+    static final String STORE = System.getProperty("dictionary.store", "heap");
+    // Connections beyond this are told the server is busy and closed
+    static final int MAX_CONNECTIONS = Integer.getInteger("dictionary.maxConnections", 65536);
+    // Requests being processed at once across all connections
+    static final int MAX_IN_FLIGHT = Integer.getInteger("dictionary.maxInFlight", 1024);
+    // Worker threads of the nio engine
+    static final int WORKERS = Integer.getInteger("dictionary.workers", Runtime.getRuntime().availableProcessors());
+    // Requests a connection may queue before the nio engine stops reading from it
+    static final int MAX_PENDING_PER_CONNECTION = Integer.getInteger("dictionary.maxPendingPerConnection", 64);
+    // Requests carrying an id that one connection may have processing at once
+    static final int MAX_PIPELINED_PER_CONNECTION = Integer.getInteger("dictionary.maxPipelined", 256);
+    // Longest request line accepted, in bytes
+    static final int MAX_LINE_BYTES = Integer.getInteger("dictionary.maxLineBytes", 16 * 1024 * 1024);
+    // When logged changes reach the disk: "always" (before the response is sent), "interval"
+    // (every dictionary.wal.fsyncIntervalMs) or "none" (left to the operating system)
+    static final WriteAheadLog.FsyncPolicy WAL_FSYNC =
+            WriteAheadLog.FsyncPolicy.valueOf(System.getProperty("dictionary.wal.fsync", "interval").toUpperCase());
+    static final long WAL_FSYNC_INTERVAL_MS = Long.getLong("dictionary.wal.fsyncIntervalMs", 100);
+    // Format the dictionary file is saved in: "text" or "binary" (a memory-mapped snapshot).
+    // Either format is recognised when loading.
+    static final DictionaryLoader.Format SNAPSHOT_FORMAT =
+            DictionaryLoader.Format.valueOf(System.getProperty("dictionary.snapshot.format", "text").toUpperCase());
+    // How often the words changed since the last snapshot are saved
+    static final long SNAPSHOT_INTERVAL_MS = Long.getLong("dictionary.snapshot.intervalMs", 60 * 1000);
+
+    // Memory for cached query responses, in bytes; 0 turns the cache off
+    static final long CACHE_MAX_BYTES = Long.getLong("dictionary.cache.maxBytes", 64L * 1024 * 1024);
+    // Missing words whose suggestion is remembered; 0 turns the miss cache off
+    static final int MISS_CACHE_ENTRIES = Integer.getInteger("dictionary.missCache.entries", 65536);
+    // Loopback port serving /metrics in the Prometheus text format; 0 turns the endpoint off
+    static final int METRICS_PORT = Integer.getInteger("dictionary.metrics.port", 0);
+
+    // Port a primary streams its changes on to replicas; 0 serves no replicas
+    static final int REPLICATION_PORT = Integer.getInteger("dictionary.replication.port", 0);
+    // Changes a replica may have waiting before the primary disconnects it; it then starts over
+    static final int REPLICATION_MAX_QUEUED = Integer.getInteger("dictionary.replication.maxQueued", 65536);
+    // "host:port" of a primary's replication port; the server then runs as a read-only replica of it
+    static final String REPLICA_OF = System.getProperty("dictionary.replicaOf");
+    // How far a replica may fall behind its primary before it stops answering reads
+    static final long REPLICA_MAX_LAG_MS = Long.getLong("dictionary.replica.maxLagMs", 5000);
+
+    // Least important messages logged: "debug", "info", "warn" or "error"
+    static final String LOG_LEVEL = System.getProperty("dictionary.log.level", "info");
+    // Messages waiting for the log writer; more are dropped and counted
+    static final int LOG_BUFFER_EVENTS = Integer.getInteger("dictionary.log.bufferEvents", 8192);
+    // Connect and disconnect messages logged per second, and messages about bad requests
+    static final int LOG_CONNECTIONS_PER_SECOND = Integer.getInteger("dictionary.log.connectionsPerSecond", 20);
+    static final int LOG_BAD_REQUESTS_PER_SECOND = Integer.getInteger("dictionary.log.badRequestsPerSecond", 5);
+
+    private ServerConfig() {
+    }
+}
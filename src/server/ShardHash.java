@@ -0,0 +1,37 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+// Where a word falls on the hash ring that splits a sharded dictionary between servers. The
+// servers do not know the ring; they only use this to list the words in a range of it when a
+// range moves to another shard. Must give the same value as client.net.HashRing.hash.
+final class ShardHash {
+    private ShardHash() {
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, then MurmurHash3's finaliser to spread nearby words apart
+    static long hash(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Whether the hash is in the ring range (from, to], which wraps past the largest long when
+    // from is not below to
+    static boolean inRange(long hash, long from, long to) {
+        return from < to ? hash > from && hash <= to : hash > from || hash <= to;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import com.google.gson.Gson;
+
+// Saves the dictionary in the background while requests keep running. Most snapshots are deltas:
+// the change log is rotated, and only the words changed in the rotated log are written, with their
+// current meanings, to <file>.delta.<n>. Once the deltas add up to half the size of the dictionary
+// file, the whole dictionary is written again and the deltas are dropped.
+//
+// The store's meaning lists never change once handed out, so a snapshot never sees a half-edited
+// list. Every change reaches the store before it is logged, so a word in the rotated log is read
+// with that change or a newer one. The lists are read after the log rotation; a word edited in the
+// meantime is saved with its newer meanings, and that edit is also in the new log, so replaying
+// deltas and logs in order at startup always ends at the latest state.
+class Snapshotter {
+    private static final Gson gson = new Gson();
+    private static final String DELTA_SUFFIX = ".delta.";
+
+    private final File dictFile;
+    private final DictionaryStore dictionary;
+    private final WriteAheadLog log;
+    private long deltaBytes;    // size of the deltas written since the last full snapshot
+    private long fullBytes;     // size of the last full snapshot
+    private int nextDelta;
+
+    // Figures of the last snapshot taken
+    private volatile long lastDurationMs;
+    private volatile long lastBytes;
+    private volatile boolean lastFull;
+
+    Snapshotter(String dictFile, DictionaryStore dictionary, WriteAheadLog log) {
+        this.dictFile = new File(dictFile).getAbsoluteFile();
+        this.dictionary = dictionary;
+        this.log = log;
+        this.fullBytes = this.dictFile.length();
+        List<File> deltas = deltaFiles(this.dictFile);
+        for (File delta : deltas) {
+            deltaBytes += delta.length();
+        }
+        this.nextDelta = deltas.isEmpty() ? 1 : deltaNumber(deltas.get(deltas.size() - 1)) + 1;
+    }
+
+    // Apply the saved deltas, oldest first, then the change log
+    static int replay(String dictFile, Consumer<WriteAheadLog.Record> apply) {
+        int count = 0;
+        for (File delta : deltaFiles(new File(dictFile).getAbsoluteFile())) {
+            count += WriteAheadLog.replayFile(delta, apply);
+        }
+        return count + WriteAheadLog.replay(dictFile, apply);
+    }
+
+    // Save the changes made since the previous snapshot, or everything if the deltas have grown large
+    synchronized void snapshot() {
+        if (deltaBytes > Math.max(fullBytes, 1024 * 1024) / 2) {
+            full();
+            return;
+        }
+        long start = System.nanoTime();
+        Set<String> changed = rotate();
+        if (changed == null) {
+            return;
+        }
+        if (changed.isEmpty()) {
+            log.deleteRotated();
+            return;
+        }
+        File delta = new File(dictFile.getParentFile(), dictFile.getName() + DELTA_SUFFIX + nextDelta);
+        try {
+            DictionaryLoader.writeAtomically(delta, out -> {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                for (String word : changed) {
+                    WriteAheadLog.Record record = new WriteAheadLog.Record();
+                    record.word = word;
+                    List<String> meanings = dictionary.get(word);
+                    if (meanings == null) {
+                        record.op = "remove";
+                    } else {
+                        record.op = "snapshot";
+                        record.meanings = meanings;
+                    }
+                    writer.write(gson.toJson(record));
+                    writer.write('\n');
+                }
+                writer.flush();
+            });
+        } catch (IOException e) {
+            Log.error("Error writing snapshot delta: " + e.getMessage());
+            return;
+        }
+        nextDelta++;
+        deltaBytes += delta.length();
+        log.deleteRotated();
+        finished(start, delta.length(), false, changed.size() + " changed words");
+    }
+
+    // Write the whole dictionary file and drop the deltas it replaces
+    synchronized void full() {
+        long start = System.nanoTime();
+        if (rotate() == null) {
+            return;
+        }
+        try {
+            if (ServerConfig.SNAPSHOT_FORMAT == DictionaryLoader.Format.BINARY) {
+                BinarySnapshot.write(dictFile, dictionary);
+            } else {
+                DictionaryLoader.writeText(dictFile, dictionary);
+            }
+        } catch (IOException e) {
+            Log.error("Error writing dictionary: " + e.getMessage());
+            return;
+        }
+        // Oldest first, so a crash part way through never leaves an older delta behind a newer one
+        for (File delta : deltaFiles(dictFile)) {
+            if (!delta.delete()) {
+                Log.warn("Could not delete " + delta);
+            }
+        }
+        deltaBytes = 0;
+        fullBytes = dictFile.length();
+        log.deleteRotated();
+        finished(start, fullBytes, true, dictionary.size() + " entries");
+    }
+
+    long lastDurationMs() {
+        return lastDurationMs;
+    }
+
+    long lastBytes() {
+        return lastBytes;
+    }
+
+    boolean lastFull() {
+        return lastFull;
+    }
+
+    private Set<String> rotate() {
+        try {
+            return log.rotate().join();
+        } catch (CompletionException e) {
+            Log.error("Error rotating change log: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private void finished(long start, long bytes, boolean full, String what) {
+        lastDurationMs = (System.nanoTime() - start) / 1_000_000;
+        lastBytes = bytes;
+        lastFull = full;
+        Log.info((full ? "Dictionary saved" : "Snapshot delta saved") + " (" + what + ", "
+                + bytes + " bytes in " + lastDurationMs + " ms).");
+    }
+
+    private static List<File> deltaFiles(File dictFile) {
+        String prefix = dictFile.getName() + DELTA_SUFFIX;
+        File[] files = dictFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        List<File> deltas = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        deltas.sort(Comparator.comparingInt(Snapshotter::deltaNumber));
+        return deltas;
+    }
+
+    private static int deltaNumber(File delta) {
+        String name = delta.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// Loads a dictionary file into each store and reports how much memory it takes:
+//   java -cp DictionaryServer.jar server.StoreFootprint <dictionary-file>
+// "estimated" is the store's own count of the bytes it holds, "measured" the growth of the
+// live heap after a full collection.
+public class StoreFootprint {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java -cp DictionaryServer.jar server.StoreFootprint <dictionary-file>");
+            return;
+        }
+        File file = new File(args[0]);
+        System.out.printf("%-8s %10s %14s %14s %10s%n", "store", "entries", "estimated MB", "measured MB", "x file");
+        for (String kind : new String[] { "heap", "packed" }) {
+            long before = usedHeap();
+            DictionaryStore store = DictionaryStore.create(kind);
+            DictionaryLoader.load(file, store);
+            long measured = usedHeap() - before;
+            System.out.printf("%-8s %10d %14.1f %14.1f %10.1f%n", kind, store.size(),
+                    store.footprintBytes() / 1e6, measured / 1e6, (double) measured / file.length());
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
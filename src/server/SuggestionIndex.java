@@ -0,0 +1,430 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Index of the dictionary headwords, used to suggest a similar word when a query misses and to
+// list the words starting with a prefix. Words are kept in two character tries, one spelled
+// forwards and one backwards, with the children of each node in label order. A lookup walks
+// a trie with one Levenshtein row per depth and prunes every branch that can no longer get close
+// enough. If a word is within distance k of the query then one half of the query matches a prefix
+// (or suffix) of it with at most k / 2 edits, so each trie only has to allow that many edits
+// until it has consumed its half, which keeps the visited part of the tries small.
+class SuggestionIndex {
+    private static final int MIN_REBUILD_GARBAGE = 1024;
+    // Stands in for every cell outside the band, which is known to be above the distance limit
+    private static final int OUT_OF_BAND = 1 << 20;
+
+    // Per-thread scratch space so a lookup does not allocate
+    private static final ThreadLocal<Search> scratch = ThreadLocal.withInitial(Search::new);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Trie forward = new Trie();
+    private Trie backward = new Trie();
+    private int live;
+    private int garbage;
+    // Trie nodes whose Levenshtein row was computed, over all lookups
+    private final LongAdder visited = new LongAdder();
+
+    // Replace the whole index with the given words
+    void rebuild(Collection<String> keys) {
+        lock.writeLock().lock();
+        try {
+            fill(new ArrayList<>(keys));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void add(String word) {
+        lock.writeLock().lock();
+        try {
+            if (forward.insert(word, word)) {
+                backward.insert(reverse(word), word);
+                live++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String word) {
+        lock.writeLock().lock();
+        try {
+            if (forward.delete(word)) {
+                backward.delete(reverse(word));
+                live--;
+                garbage++;
+            }
+            // Removed words leave their nodes behind; compact once they dominate the tries
+            if (garbage > MIN_REBUILD_GARBAGE && garbage > live) {
+                fill(forward.words());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Return the closest word within maxDistance, or null if there is none.
+    // Ties are broken alphabetically so the suggestion does not depend on insertion order.
+    String closest(String word, int maxDistance) {
+        lock.readLock().lock();
+        try {
+            Search search = scratch.get();
+            search.reset(word, maxDistance);
+            int firstHalf = (word.length() + 1) / 2;
+            forward.search(search, search.query, firstHalf);
+            backward.search(search, search.reversed, word.length() - firstHalf);
+            visited.add(search.visited);
+            String best = search.best;
+            search.best = null;
+            return best;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit words starting with the prefix, in alphabetical order
+    List<String> withPrefix(String prefix, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>(Math.min(limit, 64));
+            int node = forward.find(prefix);
+            if (node >= 0) {
+                forward.collect(node, limit, result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Levenshtein distance between two words
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitute = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // Candidates examined by closest so far, counted in trie nodes
+    long visited() {
+        return visited.sum();
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void fill(List<String> keys) {
+        forward = new Trie();
+        backward = new Trie();
+        live = 0;
+        garbage = 0;
+        // Inserting in sorted order lays each subtree out contiguously, which keeps lookups cache friendly
+        Collections.sort(keys);
+        for (String word : keys) {
+            if (forward.insert(word, word)) {
+                live++;
+            }
+        }
+        List<String> reversed = new ArrayList<>(keys.size());
+        for (String word : keys) {
+            reversed.add(reverse(word));
+        }
+        Collections.sort(reversed);
+        for (String word : reversed) {
+            backward.insert(word, reverse(word));
+        }
+    }
+
+    private static String reverse(String word) {
+        return new StringBuilder(word).reverse().toString();
+    }
+
+    // Best match found so far, shared by the forward and backward walks, plus the reusable
+    // buffers for the query and the Levenshtein rows
+    private static class Search {
+        char[] query = new char[32];
+        char[] reversed = new char[32];
+        int length;
+        int[][] rows = new int[0][];
+        // Trie nodes still to visit, as pairs of node and depth * 2 + halfMatched
+        int[] stack = new int[0];
+        int maxDistance;
+        String best;
+        int bestDistance;
+        int visited;
+        // Set by Trie.visit for the children of the node it just visited
+        boolean halfMatched;
+
+        void reset(String word, int maxDistance) {
+            int n = word.length();
+            if (query.length < n) {
+                query = new char[n];
+                reversed = new char[n];
+            }
+            word.getChars(0, n, query, 0);
+            for (int i = 0; i < n; i++) {
+                reversed[i] = query[n - 1 - i];
+            }
+            // Nodes deeper than the word length plus the limit can never be close enough
+            int depth = n + maxDistance + 1;
+            if (rows.length < depth || rows[0].length < n + 2) {
+                rows = new int[Math.max(depth, rows.length)][Math.max(n + 2, rows.length == 0 ? 0 : rows[0].length)];
+            }
+            // At most one pending sibling per depth, plus a first child
+            if (stack.length < 2 * (depth + 1)) {
+                stack = new int[2 * (depth + 1)];
+            }
+            this.length = n;
+            this.maxDistance = maxDistance;
+            this.best = null;
+            this.bestDistance = maxDistance;
+            this.visited = 0;
+        }
+
+        void offer(String candidate, int distance) {
+            if (distance <= bestDistance
+                    && (best == null || distance < bestDistance || candidate.compareTo(best) < 0)) {
+                best = candidate;
+                bestDistance = distance;
+            }
+        }
+    }
+
+    // Character trie with its nodes stored in parallel arrays
+    private static class Trie {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private char[] label = new char[INITIAL_CAPACITY];
+        private int[] firstChild = new int[INITIAL_CAPACITY];
+        private int[] nextSibling = new int[INITIAL_CAPACITY];
+        private String[] words = new String[INITIAL_CAPACITY]; // headword ending at the node, null if none
+        private int nodeCount;
+
+        Trie() {
+            newNode('\0'); // root
+        }
+
+        boolean insert(String key, String word) {
+            int node = 0;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                int child = childOf(node, c);
+                if (child < 0) {
+                    child = newNode(c);
+                    // Keep the siblings sorted so a depth-first walk visits words alphabetically
+                    int previous = -1;
+                    int next = firstChild[node];
+                    while (next >= 0 && label[next] < c) {
+                        previous = next;
+                        next = nextSibling[next];
+                    }
+                    nextSibling[child] = next;
+                    if (previous < 0) {
+                        firstChild[node] = child;
+                    } else {
+                        nextSibling[previous] = child;
+                    }
+                }
+                node = child;
+            }
+            if (words[node] != null) {
+                return false;
+            }
+            words[node] = word;
+            return true;
+        }
+
+        boolean delete(String key) {
+            int node = find(key);
+            if (node < 0 || words[node] == null) {
+                return false;
+            }
+            words[node] = null;
+            return true;
+        }
+
+        // Node reached by spelling the key, or -1
+        int find(String key) {
+            int node = 0;
+            for (int i = 0; i < key.length() && node >= 0; i++) {
+                node = childOf(node, key.charAt(i));
+            }
+            return node;
+        }
+
+        // Add the words at and below the node, in order, until the list holds limit words. The walk
+        // keeps its own stack, as a trie is as deep as its longest word.
+        void collect(int node, int limit, List<String> result) {
+            if (words[node] != null) {
+                result.add(words[node]);
+            }
+            int[] stack = new int[16];
+            int size = 0;
+            if (firstChild[node] >= 0) {
+                stack[size++] = firstChild[node];
+            }
+            while (size > 0 && result.size() < limit) {
+                node = stack[--size];
+                if (words[node] != null) {
+                    result.add(words[node]);
+                }
+                if (size + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                // The sibling goes below the child, so the whole subtree comes first
+                if (nextSibling[node] >= 0) {
+                    stack[size++] = nextSibling[node];
+                }
+                if (firstChild[node] >= 0) {
+                    stack[size++] = firstChild[node];
+                }
+            }
+        }
+
+        List<String> words() {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                if (words[i] != null) {
+                    result.add(words[i]);
+                }
+            }
+            return result;
+        }
+
+        // Walk the trie, allowing only half of the edits until the first `half` characters
+        // of the query have been matched
+        void search(Search search, char[] query, int half) {
+            int n = search.length;
+            int[] first = search.rows[0];
+            for (int i = 0; i <= n; i++) {
+                first[i] = i;
+            }
+            first[n + 1] = OUT_OF_BAND;
+            boolean halfMatched = half <= search.bestDistance / 2;
+            if (firstChild[0] < 0) {
+                return;
+            }
+            // Depth first with an explicit stack, as a long query can go as deep as a long word.
+            // Children are visited before the next sibling, so rows above a node's depth still
+            // hold its ancestors' rows when it is visited.
+            int[] stack = search.stack;
+            int size = 0;
+            stack[size++] = firstChild[0];
+            stack[size++] = 1 << 1 | (halfMatched ? 1 : 0);
+            while (size > 0) {
+                int state = stack[--size];
+                int node = stack[--size];
+                int depth = state >> 1;
+                boolean matched = (state & 1) != 0;
+                if (nextSibling[node] >= 0) {
+                    stack[size++] = nextSibling[node];
+                    stack[size++] = state;
+                }
+                if (visit(search, query, half, node, depth, matched) && firstChild[node] >= 0) {
+                    stack[size++] = firstChild[node];
+                    stack[size++] = (depth + 1) << 1 | (search.halfMatched ? 1 : 0);
+                }
+            }
+        }
+
+        // Fill the row for this node, but only the diagonal band of cells that can still be within
+        // the best distance found so far; the band narrows as better matches turn up. Returns
+        // whether the node's children are worth visiting, leaving their halfMatched in the search.
+        private boolean visit(Search search, char[] query, int half, int node, int depth, boolean halfMatched) {
+            search.visited++;
+            int n = search.length;
+            int limit = search.bestDistance;
+            int[] prev = search.rows[depth - 1];
+            int[] row = search.rows[depth];
+            char c = label[node];
+            int from = Math.max(1, depth - limit);
+            int to = Math.min(n, depth + limit);
+            if (from > to) {
+                return false;
+            }
+            row[from - 1] = from == 1 ? depth : OUT_OF_BAND;
+            int rowMin = row[from - 1];
+            int halfMin = rowMin;
+            for (int i = from; i <= to; i++) {
+                int cost = query[i - 1] == c ? 0 : 1;
+                int value = Math.min(Math.min(row[i - 1] + 1, prev[i] + 1), prev[i - 1] + cost);
+                row[i] = value;
+                if (value < rowMin) {
+                    rowMin = value;
+                }
+                if (i <= half && value < halfMin) {
+                    halfMin = value;
+                }
+            }
+            row[to + 1] = OUT_OF_BAND;
+            if (words[node] != null && to == n) {
+                search.offer(words[node], row[n]);
+            }
+            int halfBudget = search.bestDistance / 2;
+            if (!halfMatched) {
+                // Later rows can only grow on the first half, so give up once it is out of reach
+                if (halfMin > halfBudget) {
+                    return false;
+                }
+                halfMatched = half >= from - 1 && half <= to && row[half] <= halfBudget;
+            }
+            if (rowMin > search.bestDistance || depth + 1 >= n + search.maxDistance + 1) {
+                return false;
+            }
+            search.halfMatched = halfMatched;
+            return true;
+        }
+
+        private int childOf(int node, char c) {
+            for (int child = firstChild[node]; child >= 0 && label[child] <= c; child = nextSibling[child]) {
+                if (label[child] == c) {
+                    return child;
+                }
+            }
+            return -1;
+        }
+
+        private int newNode(char c) {
+            if (nodeCount == label.length) {
+                int capacity = label.length * 2;
+                label = Arrays.copyOf(label, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                words = Arrays.copyOf(words, capacity);
+            }
+            int node = nodeCount++;
+            label[node] = c;
+            firstChild[node] = -1;
+            nextSibling[node] = -1;
+            words[node] = null;
+            return node;
+        }
+    }
+}
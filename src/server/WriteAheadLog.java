@@ -0,0 +1,323 @@
+/*
+ * Name: Jing
+ * Surname: Lei
+ * Student ID: 1166617
+ */
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+// Append-only log of dictionary changes, kept next to the dictionary file as <file>.wal.
+// Each record holds the full meaning list of the word after the change (or marks it removed),
+// so replaying a record more than once is harmless. A single writer thread appends records in
+// the order they were submitted and syncs them to disk in groups according to the fsync policy.
+//
+// A snapshot rotates the log to <file>.wal.old, saves the words changed in it and then deletes
+// the old log. Startup replays <file>.wal.old (left behind if a snapshot was interrupted) and
+// then <file>.wal over the saved dictionary.
+//
+// If the log cannot be written, it is broken: every change still queued fails, later changes are
+// refused rather than acknowledged, and the writer thread tries to reopen the log every
+// RETRY_MS until it can be written again.
+class WriteAheadLog {
+    enum FsyncPolicy {
+        ALWAYS,   // every change is on disk before it is acknowledged
+        INTERVAL, // changes are synced every fsyncIntervalMs
+        NONE      // changes are left to the operating system
+    }
+
+    // One logged change
+    static class Record {
+        String op;             // request type that made the change, "remove" deletes the word
+        String word;
+        List<String> meanings; // meanings after the change, absent for "remove"
+    }
+
+    private static final Gson gson = new Gson();
+    private static final long RETRY_MS = 1000;
+
+    private final File logFile;
+    private final File rotatedFile;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private FileOutputStream out;
+    private Writer writer;
+    private long lastSync = System.currentTimeMillis();
+    private boolean unsynced;
+    private Set<String> changedWords = new HashSet<>(); // words written since the last rotation
+    // Changes queued so far, and how many of them the writer had taken when it last rotated the
+    // log. Both only grow, so a change queued behind a rotation is never counted as rotated.
+    private final AtomicLong appended = new AtomicLong();
+    private volatile long appendedAtRotate;
+    private volatile IOException broken;                // why the log cannot be written, if it cannot
+
+    // A change waiting to be written, and the future of the caller waiting for it
+    private static class Pending {
+        final Record record;
+        final CompletableFuture<Void> done;
+
+        Pending(Record record, CompletableFuture<Void> done) {
+            this.record = record;
+            this.done = done;
+        }
+    }
+
+    // Queue marker asking the writer thread to rotate the log
+    private static class Rotate {
+        final CompletableFuture<Set<String>> done = new CompletableFuture<>();
+    }
+
+    WriteAheadLog(String dictFile, FsyncPolicy policy, long fsyncIntervalMs) throws IOException {
+        this.logFile = new File(dictFile + ".wal");
+        this.rotatedFile = new File(dictFile + ".wal.old");
+        this.policy = policy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        openLog();
+        Thread thread = new Thread(this::writeLoop, "wal-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Apply every logged change, oldest first, to the consumer. A torn last line from a crash
+    // mid-write is skipped.
+    static int replay(String dictFile, Consumer<Record> apply) {
+        return replayFile(new File(dictFile + ".wal.old"), apply) + replayFile(new File(dictFile + ".wal"), apply);
+    }
+
+    // Apply the records of one file of JSON lines, such as a log or a snapshot delta
+    static int replayFile(File file, Consumer<Record> apply) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Record record = gson.fromJson(line, Record.class);
+                    if (record != null && record.op != null && record.word != null) {
+                        apply.accept(record);
+                        count++;
+                    }
+                } catch (JsonSyntaxException e) {
+                    Log.warn("Skipping damaged log record in " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Error replaying " + file + ": " + e.getMessage());
+        }
+        return count;
+    }
+
+    // Queue a change. Under the ALWAYS policy the returned future completes once the change is
+    // on disk; otherwise nothing needs to wait and null is returned. While the log is broken the
+    // change is not queued, and the future has already failed.
+    CompletableFuture<Void> append(String op, String word, List<String> meanings) {
+        IOException failure = broken;
+        if (failure != null) {
+            return CompletableFuture.failedFuture(failure);
+        }
+        Record record = new Record();
+        record.op = op;
+        record.word = word;
+        record.meanings = meanings;
+        CompletableFuture<Void> done = policy == FsyncPolicy.ALWAYS ? new CompletableFuture<>() : null;
+        appended.incrementAndGet();
+        queue.add(new Pending(record, done));
+        return done;
+    }
+
+    // Whether changes can be logged now; callers refuse changes before making them otherwise
+    boolean writable() {
+        return broken == null;
+    }
+
+    boolean changedSinceRotate() {
+        return appended.get() > appendedAtRotate;
+    }
+
+    // Move the current log aside so a snapshot can replace it. Every change queued before this
+    // call ends up in the rotated log, every later one in the new log. The future yields the
+    // words changed in the rotated log since the previous rotation.
+    CompletableFuture<Set<String>> rotate() {
+        Rotate rotate = new Rotate();
+        queue.add(rotate);
+        return rotate.done;
+    }
+
+    // Called once a snapshot holding everything in the rotated log is safely on disk
+    void deleteRotated() {
+        if (rotatedFile.exists() && !rotatedFile.delete()) {
+            Log.warn("Could not delete " + rotatedFile);
+        }
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        long taken = 0;   // changes taken off the queue
+        while (true) {
+            try {
+                Object first = broken != null ? queue.poll(RETRY_MS, TimeUnit.MILLISECONDS)
+                        : policy == FsyncPolicy.INTERVAL && unsynced
+                        ? queue.poll(fsyncIntervalMs, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (broken != null) {
+                reopen();
+            }
+            IOException failure = broken;
+            List<CompletableFuture<Void>> waiting = new ArrayList<>();
+            // Words of the records written in this batch; they count as changed once flushed
+            List<String> written = new ArrayList<>();
+            for (Object item : batch) {
+                if (item instanceof Rotate) {
+                    Rotate rotate = (Rotate) item;
+                    if (failure != null) {
+                        rotate.done.completeExceptionally(failure);
+                        continue;
+                    }
+                    try {
+                        writer.flush();
+                        out.getFD().sync();
+                        changedWords.addAll(written);
+                        written.clear();
+                        moveAside();
+                        appendedAtRotate = taken;
+                    } catch (IOException e) {
+                        // The log is still where it was, so writing carries on
+                        Log.error("Error moving " + logFile + " aside: " + e.getMessage());
+                        rotate.done.completeExceptionally(e);
+                        continue;
+                    }
+                    try {
+                        openNext();
+                        rotate.done.complete(changedWords);
+                        changedWords = new HashSet<>();
+                    } catch (IOException e) {
+                        failure = e;
+                        rotate.done.completeExceptionally(e);
+                    }
+                } else {
+                    Pending pending = (Pending) item;
+                    taken++;
+                    if (pending.done != null) {
+                        waiting.add(pending.done);
+                    }
+                    // Once a write fails, the rest of the batch is not written and fails with it
+                    if (failure == null) {
+                        try {
+                            writer.write(gson.toJson(pending.record));
+                            writer.write('\n');
+                            unsynced = true;
+                            written.add(pending.record.word);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+            batch.clear();
+            if (failure == null) {
+                try {
+                    writer.flush();
+                    long now = System.currentTimeMillis();
+                    // One sync covers the whole batch, so concurrent writers share its cost
+                    if (unsynced && (policy == FsyncPolicy.ALWAYS
+                            || (policy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalMs))) {
+                        out.getFD().sync();
+                        unsynced = false;
+                        lastSync = now;
+                    }
+                    changedWords.addAll(written);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null && broken == null) {
+                broken = failure;
+                Log.error("Error writing to " + logFile + ", changes are refused until it can be written: "
+                        + failure.getMessage());
+            }
+            for (CompletableFuture<Void> done : waiting) {
+                if (failure == null) {
+                    done.complete(null);
+                } else {
+                    done.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    // Open the log again after a failure. It may end in a torn record, so the first new record
+    // starts on a line of its own.
+    private void reopen() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // Already unusable
+        }
+        try {
+            openLog();
+            writer.write('\n');
+            writer.flush();
+            broken = null;
+            Log.info("Change log " + logFile + " can be written again");
+        } catch (IOException e) {
+            // Still broken; tried again later
+        }
+    }
+
+    // Move the log's records to the rotated file. Called with everything written so far synced;
+    // on failure the log is left in place.
+    private void moveAside() throws IOException {
+        if (rotatedFile.exists()) {
+            // An earlier snapshot did not finish; keep its records ahead of the current ones
+            try (FileOutputStream old = new FileOutputStream(rotatedFile, true)) {
+                Files.copy(logFile.toPath(), old);
+                old.getFD().sync();
+            }
+            // Only once the copy is on disk, or a crash could lose the records in both files
+            Files.delete(logFile.toPath());
+        } else {
+            Files.move(logFile.toPath(), rotatedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Start a new log once the old one has been moved aside. The old stream is closed even if
+    // the new log cannot be opened, as it now writes to the rotated file.
+    private void openNext() throws IOException {
+        Writer oldWriter = writer;
+        try {
+            openLog();
+        } finally {
+            oldWriter.close();
+        }
+    }
+
+    private void openLog() throws IOException {
+        out = new FileOutputStream(logFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        unsynced = false;
+    }
+}